@@ -1,5 +1,9 @@
 package sh.libre.scim.core;
 
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 import java.util.stream.Stream;
 
 import jakarta.persistence.EntityManager;
@@ -13,23 +17,24 @@ import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.RoleMapperModel;
 import org.keycloak.common.util.MultivaluedHashMap;
+import sh.libre.scim.jpa.ScimMappingCache;
 import sh.libre.scim.jpa.ScimResource;
+import sh.libre.scim.jpa.ScimResourceId;
 import de.captaingoldfish.scim.sdk.common.resources.ResourceNode;
 import de.captaingoldfish.scim.sdk.client.ScimRequestBuilder;
 import de.captaingoldfish.scim.sdk.client.builder.PatchBuilder;
-import java.util.regex.Pattern;
-import java.util.List;
 import java.util.ArrayList;
-import java.util.Set;
-import java.util.HashSet;
-import java.util.stream.Stream;
-import java.util.regex.Pattern;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
-import java.util.ArrayList;
+import java.util.Map;
 import java.util.Set;
-import java.util.HashSet;
+import java.util.function.BiFunction;
 
 public abstract class Adapter<M extends RoleMapperModel, S extends ResourceNode> {
+    // Oracle caps IN lists at 1000 elements
+    protected static final int IN_CLAUSE_CHUNK_SIZE = 1000;
+    protected static final int DEFAULT_PAGE_SIZE = 500;
 
     protected final Logger LOGGER;
     protected final String realmId;
@@ -41,6 +46,7 @@ public abstract class Adapter<M extends RoleMapperModel, S extends ResourceNode>
 
     protected String id;
     protected String externalId;
+    protected String contentHash;
     protected Boolean skip = false;
 
     public Adapter(KeycloakSession session, String componentId, String type, Logger logger) {
@@ -88,9 +94,30 @@ public abstract class Adapter<M extends RoleMapperModel, S extends ResourceNode>
         entity.setExternalId(externalId);
         entity.setComponentId(componentId);
         entity.setRealmId(realmId);
+        entity.setContentHash(contentHash);
         return entity;
     }
 
+    /**
+     * Returns a hash of the representation sent to the SCIM server, used to skip
+     * updates when nothing the server sees has changed. The remote id is left out
+     * so the hash is the same before and after creation.
+     */
+    public String getFingerprint() {
+        var node = toSCIM(false);
+        node.remove("id");
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(node.toString().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
     public TypedQuery<ScimResource> query(String query, String id) {
         return query(query, id, type);
     }
@@ -104,13 +131,145 @@ public abstract class Adapter<M extends RoleMapperModel, S extends ResourceNode>
                 .setParameter("id", id);
     }
 
+    /**
+     * Resolves many local ids to their SCIM ids in a few queries. Ids without a
+     * mapping are left out of the result.
+     */
+    public Map<String, String> getExternalIds(String type, Collection<String> ids) {
+        var result = new HashMap<String, String>();
+        var missing = new ArrayList<String>();
+        for (var id : ids) {
+            var externalId = ScimMappingCache.getExternalId(realmId, componentId, type, id);
+            if (externalId != null) {
+                result.put(id, externalId);
+            } else {
+                missing.add(id);
+            }
+        }
+        var generation = ScimMappingCache.generation(realmId, componentId, type);
+        queryChunked("findByIds", type, missing).forEach(m -> {
+            ScimMappingCache.put(m, generation);
+            result.put(m.getId(), m.getExternalId());
+        });
+        return result;
+    }
+
+    /**
+     * Resolves many SCIM ids to their local ids in a few queries. Ids without a
+     * mapping are left out of the result.
+     */
+    public Map<String, String> getInternalIds(String type, Collection<String> externalIds) {
+        var result = new HashMap<String, String>();
+        var missing = new ArrayList<String>();
+        for (var externalId : externalIds) {
+            var id = ScimMappingCache.getId(realmId, componentId, type, externalId);
+            if (id != null) {
+                result.put(externalId, id);
+            } else {
+                missing.add(externalId);
+            }
+        }
+        var generation = ScimMappingCache.generation(realmId, componentId, type);
+        queryChunked("findByExternalIds", type, missing).forEach(m -> {
+            ScimMappingCache.put(m, generation);
+            result.put(m.getExternalId(), m.getId());
+        });
+        return result;
+    }
+
+    /**
+     * Returns the SCIM id mapped to a local id, or null if it has none.
+     */
+    public String getExternalId(String type, String id) {
+        var externalId = ScimMappingCache.getExternalId(realmId, componentId, type, id);
+        if (externalId != null) {
+            return externalId;
+        }
+        var generation = ScimMappingCache.generation(realmId, componentId, type);
+        var mapping = getMapping(type, id);
+        if (mapping == null) {
+            return null;
+        }
+        ScimMappingCache.put(mapping, generation);
+        return mapping.getExternalId();
+    }
+
+    /**
+     * Loads every mapping of the component and type, SCIM id to local id, a page
+     * at a time and without managing entities.
+     */
+    public Map<String, String> getMappingIds() {
+        var result = new HashMap<String, String>();
+        var pageSize = getPageSize();
+        for (int first = 0;; first += pageSize) {
+            var page = this.em
+                    .createNamedQuery("findMappingIds", Object[].class)
+                    .setParameter("type", type)
+                    .setParameter("realmId", realmId)
+                    .setParameter("componentId", componentId)
+                    .setFirstResult(first)
+                    .setMaxResults(pageSize)
+                    .getResultList();
+            page.forEach(row -> result.put((String) row[0], (String) row[1]));
+            if (page.size() < pageSize) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Splits values into lists that fit in an IN clause.
+     */
+    protected static List<List<String>> partition(Collection<String> values) {
+        var list = List.copyOf(values);
+        var result = new ArrayList<List<String>>();
+        for (int i = 0; i < list.size(); i += IN_CLAUSE_CHUNK_SIZE) {
+            result.add(list.subList(i, Math.min(list.size(), i + IN_CLAUSE_CHUNK_SIZE)));
+        }
+        return result;
+    }
+
+    private List<ScimResource> queryChunked(String query, String type, Collection<String> ids) {
+        var result = new ArrayList<ScimResource>();
+        var chunk = new ArrayList<String>(IN_CLAUSE_CHUNK_SIZE);
+        for (var id : ids) {
+            chunk.add(id);
+            if (chunk.size() == IN_CLAUSE_CHUNK_SIZE) {
+                result.addAll(queryIds(query, type, chunk));
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            result.addAll(queryIds(query, type, chunk));
+        }
+        return result;
+    }
+
+    private List<ScimResource> queryIds(String query, String type, List<String> ids) {
+        return this.em
+                .createNamedQuery(query, ScimResource.class)
+                .setParameter("type", type)
+                .setParameter("realmId", realmId)
+                .setParameter("componentId", componentId)
+                .setParameter("ids", ids)
+                .getResultList();
+    }
+
     public ScimResource getMapping() {
         try {
             if (this.id != null) {
-                return this.query("findById", id).getSingleResult();
+                // Primary key lookup, served from the persistence context when possible
+                return this.em.find(ScimResource.class, new ScimResourceId(id, realmId, componentId, type));
             }
             if (this.externalId != null) {
-                return this.query("findByExternalId", externalId).getSingleResult();
+                var cachedId = ScimMappingCache.getId(realmId, componentId, type, externalId);
+                if (cachedId != null) {
+                    return this.em.find(ScimResource.class, new ScimResourceId(cachedId, realmId, componentId, type));
+                }
+                var generation = ScimMappingCache.generation(realmId, componentId, type);
+                var mapping = this.query("findByExternalId", externalId).getSingleResult();
+                ScimMappingCache.put(mapping, generation);
+                return mapping;
             }
         } catch (NotFoundException e) {
         } catch (NoResultException e) {
@@ -121,13 +280,32 @@ public abstract class Adapter<M extends RoleMapperModel, S extends ResourceNode>
         return null;
     }
 
+    public ScimResource getMapping(String type, String id) {
+        return this.em.find(ScimResource.class, new ScimResourceId(id, realmId, componentId, type));
+    }
+
     public void saveMapping() {
-        this.em.persist(toMapping());
+        var mapping = toMapping();
+        this.em.persist(mapping);
+        ScimMappingCache.changed(session, mapping);
     }
 
     public void deleteMapping() {
-        var mapping = this.em.merge(toMapping());
-        this.em.remove(mapping);
+        var mapping = getMapping();
+        if (mapping != null) {
+            this.em.remove(mapping);
+            ScimMappingCache.changed(session, mapping);
+        }
+    }
+
+    /**
+     * Points an existing mapping to another SCIM id, e.g. after the remote
+     * resource had to be recreated.
+     */
+    public void updateMapping(ScimResource mapping, String externalId) {
+        mapping.setExternalId(externalId);
+        this.em.merge(mapping);
+        ScimMappingCache.changed(session, mapping);
     }
 
     public void apply(ScimResource mapping) {
@@ -149,42 +327,76 @@ public abstract class Adapter<M extends RoleMapperModel, S extends ResourceNode>
 
     public abstract Boolean tryToMap();
 
+    /**
+     * Batch counterpart of {@link #entityExists()}: returns which of the local
+     * ids still exist.
+     */
+    public abstract Set<String> getExistingIds(Collection<String> ids);
+
+    /**
+     * Batch counterpart of {@link #tryToMap()}: returns the local id matching
+     * each remote resource, by SCIM id. Resources without a match are left out.
+     */
+    public abstract Map<String, String> findLocalMatches(List<S> resources);
+
     public abstract void createEntity() throws Exception;
 
     public abstract Stream<M> getResourceStream();
 
+    public abstract Stream<String> getResourceIdStream();
+
+    /**
+     * Same as {@link #getResourceIdStream()} without the first resources, to
+     * resume an interrupted sync.
+     */
+    public Stream<String> getResourceIdStream(int first) {
+        return getResourceIdStream().skip(first);
+    }
+
+    public abstract M getResourceById(String id);
+
+    /**
+     * Whether refresh sync handles the resource, i.e. whether
+     * {@link #getResourceStream()} would return it.
+     */
+    public abstract boolean isInSyncScope(M model);
+
     protected Stream<org.keycloak.models.GroupModel> getFilteredGroups() {
-        var model = getModel();
-        if (model == null) {
-            return this.session.groups().getGroupsStream(this.session.getContext().getRealm());
-        }
-        var filterList = model.get("group-filter");
-        String filter = filterList != null && !filterList.isEmpty() ? filterList.get(0) : null;
-        if (filter == null || filter.trim().isEmpty()) {
-            return this.session.groups().getGroupsStream(this.session.getContext().getRealm());
+        var filter = getGroupFilter();
+        if (filter == null || !filter.isFiltered()) {
+            return this.session.groups().getGroupsStream(realm);
         }
-        var patternStrings = filter.split(",");
-        List<Pattern> patterns = new ArrayList<>();
-        for (var p : patternStrings) {
-            patterns.add(Pattern.compile(p.trim()));
-        }
-        Set<org.keycloak.models.GroupModel> filteredGroups = new HashSet<>();
-        this.session.groups().getGroupsStream(this.session.getContext().getRealm())
-            .filter(g -> patterns.stream().anyMatch(p -> p.matcher(g.getName()).matches()))
-            .forEach(g -> {
-                addGroupRecursively(filteredGroups, g);
-            });
-        return filteredGroups.stream();
+        return filter.getGroupIds().stream()
+                .map(groupId -> this.session.groups().getGroupById(realm, groupId))
+                .filter(g -> g != null);
     }
 
-    public Boolean skipRefresh() {
-        return skip;
+    /**
+     * Lazily concatenates the pages returned by a firstResult/maxResults query,
+     * so only one page is held at a time.
+     */
+    protected static <T> Stream<T> paged(BiFunction<Integer, Integer, Stream<T>> query, int pageSize) {
+        return Stream.iterate(0, first -> first + pageSize)
+                .map(first -> query.apply(first, pageSize).toList())
+                .takeWhile(page -> !page.isEmpty())
+                .flatMap(List::stream);
     }
 
-    private void addGroupRecursively(Set<org.keycloak.models.GroupModel> groups, org.keycloak.models.GroupModel group) {
-        if (groups.add(group)) {
-            group.getSubGroupsStream().forEach(sub -> addGroupRecursively(groups, sub));
-        }
+    protected int getPageSize() {
+        var component = realm.getComponent(this.componentId);
+        return component == null ? DEFAULT_PAGE_SIZE : Math.max(1, component.get("sync-page-size", DEFAULT_PAGE_SIZE));
+    }
+
+    /**
+     * Returns the group filter of the component, or null when the component is gone.
+     */
+    protected ScimGroupFilter getGroupFilter() {
+        var component = realm.getComponent(this.componentId);
+        return component == null ? null : ScimGroupFilter.get(session, component);
+    }
+
+    public Boolean skipRefresh() {
+        return skip;
     }
 
     protected MultivaluedHashMap<String, String> getModel() {
@@ -3,9 +3,13 @@ package sh.libre.scim.core;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -26,7 +30,7 @@ import org.keycloak.models.UserModel;
 public class GroupAdapter extends Adapter<GroupModel, Group> {
 
     private String displayName;
-    private Set<String> members = new HashSet<String>();
+    private Set<String> members = new TreeSet<String>();
 
     public GroupAdapter(KeycloakSession session, String componentId) {
         super(session, componentId, "Group", Logger.getLogger(GroupAdapter.class));
@@ -54,7 +58,7 @@ public class GroupAdapter extends Adapter<GroupModel, Group> {
         this.members = session.users()
                 .getGroupMembersStream(session.getContext().getRealm(), group)
                 .map(x -> x.getId())
-                .collect(Collectors.toSet());
+                .collect(Collectors.toCollection(TreeSet::new));
         this.skip = StringUtils.equals(group.getFirstAttribute("scim-skip"), "true");
     }
 
@@ -64,17 +68,15 @@ public class GroupAdapter extends Adapter<GroupModel, Group> {
         setDisplayName(group.getDisplayName().get());
         var groupMembers = group.getMembers();
         if (groupMembers != null && groupMembers.size() > 0) {
-            this.members = new HashSet<String>();
-            for (var groupMember : groupMembers) {
-                var databricksUserId = groupMember.getValue().get();
-                try {
-                    // Find the Keycloak user by Databricks user ID (externalId)
-                    var userMapping = query("findByExternalId", databricksUserId, "User");
-                    var mapping = userMapping.getSingleResult();
-                    this.members.add(mapping.getId());
-                } catch (Exception e) {
-                    LOGGER.warn("Could not find user mapping for Databricks user ID: " + databricksUserId, e);
-                }
+            var externalIds = groupMembers.stream()
+                    .map(m -> m.getValue().orElse(null))
+                    .filter(v -> v != null)
+                    .collect(Collectors.toList());
+            var internalIds = getInternalIds("User", externalIds);
+            this.members = new TreeSet<String>(internalIds.values());
+            if (internalIds.size() < externalIds.size()) {
+                LOGGER.warnf("Could not find user mapping for %d of %d members of group %s",
+                        externalIds.size() - internalIds.size(), externalIds.size(), externalId);
             }
         }
     }
@@ -87,23 +89,11 @@ public class GroupAdapter extends Adapter<GroupModel, Group> {
         group.setDisplayName(displayName);
         if (members.size() > 0) {
             var groupMembers = new ArrayList<Member>();
-            for (var member : members) {
+            for (var memberExternalId : getMemberExternalIds()) {
                 var groupMember = new Member();
-                try {
-                    var user = session.users().getUserById(realm, member);
-                    if (user != null) {
-                        // Get the Databricks user ID from the mapping
-                        var userMapping = query("findById", user.getId(), "User");
-                        var mapping = userMapping.getSingleResult();
-                        String databricksUserId = mapping.getExternalId();
-                        groupMember.setValue(databricksUserId);
-                        var ref = new URI(String.format("Users/%s", databricksUserId));
-                        groupMember.setRef(ref.toString());
-                        groupMembers.add(groupMember);
-                    }
-                } catch (Exception e) {
-                    LOGGER.error(e);
-                }
+                groupMember.setValue(memberExternalId);
+                groupMember.setRef(String.format("Users/%s", memberExternalId));
+                groupMembers.add(groupMember);
             }
             group.setMembers(groupMembers);
         }
@@ -133,7 +123,7 @@ public class GroupAdapter extends Adapter<GroupModel, Group> {
 
     @Override
     public Boolean tryToMap() {
-        var group = session.groups().getGroupsStream(realm).filter(x -> x.getName() == displayName).findFirst();
+        var group = session.groups().getGroupsStream(realm).filter(x -> x.getName().equals(displayName)).findFirst();
         if (group.isPresent()) {
             setId(group.get().getId());
             return true;
@@ -141,6 +131,45 @@ public class GroupAdapter extends Adapter<GroupModel, Group> {
         return false;
     }
 
+    @Override
+    public Set<String> getExistingIds(Collection<String> ids) {
+        var existing = new HashSet<String>();
+        for (var chunk : partition(ids)) {
+            em.createQuery("select g.id from GroupEntity g where g.realm = :realmId and g.id in :ids", String.class)
+                    .setParameter("realmId", realmId)
+                    .setParameter("ids", chunk)
+                    .getResultStream()
+                    .forEach(existing::add);
+        }
+        return existing;
+    }
+
+    @Override
+    public Map<String, String> findLocalMatches(List<Group> resources) {
+        var names = resources.stream()
+                .map(g -> g.getDisplayName().orElse(null))
+                .filter(n -> n != null)
+                .collect(Collectors.toSet());
+        var byName = new HashMap<String, String>();
+        for (var chunk : partition(names)) {
+            em.createQuery("select g.name, g.id from GroupEntity g where g.realm = :realmId and g.name in :names",
+                    Object[].class)
+                    .setParameter("realmId", realmId)
+                    .setParameter("names", chunk)
+                    .getResultStream()
+                    .forEach(row -> byName.putIfAbsent((String) row[0], (String) row[1]));
+        }
+        var matches = new HashMap<String, String>();
+        for (var resource : resources) {
+            var externalId = resource.getId().orElse(null);
+            var match = resource.getDisplayName().map(byName::get).orElse(null);
+            if (externalId != null && match != null) {
+                matches.put(externalId, match);
+            }
+        }
+        return matches;
+    }
+
     @Override
     public void createEntity() {
         var group = session.groups().createGroup(realm, displayName);
@@ -163,6 +192,26 @@ public class GroupAdapter extends Adapter<GroupModel, Group> {
         return getFilteredGroups();
     }
 
+    @Override
+    public Stream<String> getResourceIdStream() {
+        var filter = getGroupFilter();
+        if (filter != null && filter.isFiltered()) {
+            return filter.getGroupIds().stream();
+        }
+        return getResourceStream().map(GroupModel::getId);
+    }
+
+    @Override
+    public GroupModel getResourceById(String id) {
+        return session.groups().getGroupById(realm, id);
+    }
+
+    @Override
+    public boolean isInSyncScope(GroupModel group) {
+        var filter = getGroupFilter();
+        return filter == null || filter.isGroupInScope(group.getId());
+    }
+
     @Override
     public Boolean skipRefresh() {
         return false;
@@ -174,19 +223,8 @@ public class GroupAdapter extends Adapter<GroupModel, Group> {
         PatchBuilder<Group> patchBuilder;
         patchBuilder = scimRequestBuilder.patch(url, Group.class);
         if (members.size() > 0) {
-            for (String member : members) {
-                var user = session.users().getUserById(realm, member);
-                if (user != null) {
-                    try {
-                        // Get the Databricks user ID from the mapping
-                        var userMapping = query("findById", user.getId(), "User");
-                        var mapping = userMapping.getSingleResult();
-                        String databricksUserId = mapping.getExternalId();
-                        groupMembers.add(Member.builder().value(databricksUserId).build());
-                    } catch (Exception e) {
-                        LOGGER.error("Failed to get mapping for user " + user.getId(), e);
-                    }
-                }
+            for (String memberExternalId : getMemberExternalIds()) {
+                groupMembers.add(Member.builder().value(memberExternalId).build());
             }
             patchBuilder.addOperation()
                 .path("members")
@@ -203,4 +241,47 @@ public class GroupAdapter extends Adapter<GroupModel, Group> {
         LOGGER.info(patchBuilder.getResource());
         return patchBuilder;
     }
+
+    /**
+     * Returns the SCIM ids of the provisioned members, in member order. Members
+     * that haven't been provisioned to the target are left out.
+     */
+    protected List<String> getMemberExternalIds() {
+        var externalIds = getExternalIds("User", members);
+        var result = new ArrayList<String>(externalIds.size());
+        for (var member : members) {
+            var externalId = externalIds.get(member);
+            if (externalId != null) {
+                result.add(externalId);
+            }
+        }
+        if (result.size() < members.size()) {
+            LOGGER.debugf("%d of %d members of group %s have no mapping", members.size() - result.size(),
+                    members.size(), id);
+        }
+        return result;
+    }
+
+    /**
+     * Builds a PATCH adding or removing a single member, identified by its SCIM id,
+     * instead of replacing the whole member list.
+     */
+    public PatchBuilder<Group> toMemberPatchBuilder(ScimRequestBuilder scimRequestBuilder, String url,
+            String memberExternalId, boolean add) {
+        PatchBuilder<Group> patchBuilder = scimRequestBuilder.patch(url, Group.class);
+        if (add) {
+            patchBuilder.addOperation()
+                .path("members")
+                .op(PatchOp.ADD)
+                .valueNodes(List.of(Member.builder().value(memberExternalId).build()))
+                .build();
+        } else {
+            patchBuilder.addOperation()
+                .path("members[value eq \"%s\"]".formatted(memberExternalId))
+                .op(PatchOp.REMOVE)
+                .value(null)
+                .build();
+        }
+        return patchBuilder;
+    }
 }
@@ -0,0 +1,141 @@
+package sh.libre.scim.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.captaingoldfish.scim.sdk.common.constants.enums.HttpMethod;
+import de.captaingoldfish.scim.sdk.common.resources.ResourceNode;
+import de.captaingoldfish.scim.sdk.common.response.BulkResponseOperation;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Groups create/replace/delete operations into SCIM /Bulk requests (RFC 7644
+ * section 3.7), respecting the target's maxOperations and maxPayloadSize. Each
+ * operation is identified by a bulkId so results can be matched back to the
+ * local resource that produced it. Requests with creates aren't retried as a
+ * whole; the operations without a result are handed back to the handler.
+ */
+public class ScimBulkBatch<T> {
+    final private static Logger LOGGER = Logger.getLogger(ScimBulkBatch.class);
+
+    public static class Operation<T> {
+        final private String bulkId;
+        final private HttpMethod method;
+        final private String path;
+        final private ResourceNode data;
+        final private T context;
+
+        Operation(String bulkId, HttpMethod method, String path, ResourceNode data, T context) {
+            this.bulkId = bulkId;
+            this.method = method;
+            this.path = path;
+            this.data = data;
+            this.context = context;
+        }
+
+        public String getBulkId() {
+            return bulkId;
+        }
+
+        public HttpMethod getMethod() {
+            return method;
+        }
+
+        public T getContext() {
+            return context;
+        }
+    }
+
+    public interface ResultHandler<T> {
+        /**
+         * Called once per operation. The response operation is null when the whole
+         * bulk request failed or the target didn't report a result for it.
+         */
+        void handle(Operation<T> operation, BulkResponseOperation result);
+    }
+
+    final private ScimClient client;
+    final private int maxOperations;
+    final private long maxPayloadSize;
+    final private ResultHandler<T> handler;
+    final private Map<String, Operation<T>> operations = new LinkedHashMap<>();
+    private long payloadSize = 0;
+
+    public ScimBulkBatch(ScimClient client, int maxOperations, long maxPayloadSize,
+            ResultHandler<T> handler) {
+        this.client = client;
+        this.maxOperations = Math.max(1, maxOperations);
+        this.maxPayloadSize = maxPayloadSize;
+        this.handler = handler;
+    }
+
+    public void add(String bulkId, HttpMethod method, String path, ResourceNode data, T context) {
+        // Leave some room for the envelope of the bulk request itself.
+        long size = (data == null ? 0 : data.toString().getBytes(StandardCharsets.UTF_8).length) + path.length() + 128;
+        if (!operations.isEmpty() && maxPayloadSize > 0 && payloadSize + size > maxPayloadSize * 9 / 10) {
+            flush();
+        }
+        operations.put(bulkId, new Operation<>(bulkId, method, path, data, context));
+        payloadSize += size;
+        if (operations.size() >= maxOperations) {
+            flush();
+        }
+    }
+
+    public void flush() {
+        if (operations.isEmpty()) {
+            return;
+        }
+        List<Operation<T>> pending = new ArrayList<>(operations.values());
+        operations.clear();
+        payloadSize = 0;
+
+        LOGGER.debugf("Sending bulk request with %d operations", pending.size());
+        Map<String, BulkResponseOperation> results = new LinkedHashMap<>();
+        try {
+            var bulkBuilder = client.scimRequestBuilder.bulk();
+            for (var operation : pending) {
+                var creator = bulkBuilder.bulkRequestOperation(operation.path)
+                        .method(operation.method)
+                        .bulkId(operation.bulkId);
+                if (operation.data != null) {
+                    creator.data(operation.data);
+                }
+                bulkBuilder = creator.next();
+            }
+            var request = bulkBuilder;
+            // A failed bulk request may still have created some resources; sending its
+            // POSTs again would create them twice, so they are looked up instead
+            var retry = pending.stream().noneMatch(o -> o.method == HttpMethod.POST);
+            var response = client.send("Bulk", "bulk", request::sendRequest, retry);
+            if (response.isSuccess()) {
+                for (var result : response.getResource().getBulkResponseOperations()) {
+                    var bulkId = result.getBulkId().orElse(null);
+                    if (bulkId == null) {
+                        // bulkId is only mandatory for POST, match the others by location
+                        var location = result.getLocation().orElse("");
+                        bulkId = pending.stream()
+                                .filter(o -> o.method != HttpMethod.POST && location.endsWith(o.path))
+                                .map(o -> o.bulkId)
+                                .findFirst()
+                                .orElse(null);
+                    }
+                    if (bulkId != null) {
+                        results.put(bulkId, result);
+                    }
+                }
+            } else {
+                LOGGER.warnf("Bulk request failed: HTTP %d - %s", response.getHttpStatus(), response.getResponseBody());
+            }
+        } catch (Exception e) {
+            LOGGER.errorf("Bulk request failed: %s", e.getMessage());
+        }
+        for (var operation : pending) {
+            handler.handle(operation, results.get(operation.bulkId));
+        }
+    }
+}
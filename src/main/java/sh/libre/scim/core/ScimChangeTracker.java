@@ -0,0 +1,187 @@
+package sh.libre.scim.core;
+
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.events.EventStoreProvider;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import sh.libre.scim.jpa.ScimOutboxEntry;
+
+/**
+ * Collects the users and groups that may have changed since a point in time,
+ * for incremental sync. Changes are read from the users' creation timestamps,
+ * the realm's stored admin and user events, and the outbox entries recorded
+ * for the component. Self-service profile changes only show up as user events,
+ * so stored events cover the period only when both admin events and the user
+ * events for profile changes are stored. When neither those events nor the
+ * outbox cover the whole period the change set is incomplete and a full sync
+ * is needed instead.
+ */
+public class ScimChangeTracker {
+    final private static Logger LOGGER = Logger.getLogger(ScimChangeTracker.class);
+
+    final private Set<String> userIds = new LinkedHashSet<>();
+    final private Set<String> groupIds = new LinkedHashSet<>();
+    final private Set<String> roleMappingGroupIds = new LinkedHashSet<>();
+    private boolean complete;
+
+    public static ScimChangeTracker since(KeycloakSession session, ComponentModel model, long since) {
+        var realm = session.getContext().getRealm();
+        var changes = new ScimChangeTracker();
+        changes.collectCreatedUsers(session, realm, since);
+        var events = session.getProvider(EventStoreProvider.class);
+        if (events != null && realm.isAdminEventsEnabled()) {
+            changes.collectAdminEvents(events, realm, since);
+        }
+        if (events != null && realm.isEventsEnabled()) {
+            changes.collectUserEvents(events, realm, since);
+        }
+        changes.complete = events != null && realm.isAdminEventsEnabled() && storesProfileEvents(realm);
+        var executor = ScimPropagationExecutor.getInstance();
+        if (model.get("propagation-async", false) && executor != null) {
+            changes.collectOutbox(session, model, since);
+            // Delivered entries older than the retention are gone
+            changes.complete |= executor.getRetention() > Time.currentTimeMillis() - since;
+        }
+        changes.expandRoleMappingGroups(session, realm);
+        LOGGER.debugf("%d users and %d groups changed since %s (complete: %s)", changes.userIds.size(),
+                changes.groupIds.size(), new Date(since), changes.complete);
+        return changes;
+    }
+
+    /**
+     * Whether the realm stores the user events that change what is sent to the
+     * SCIM server. An empty list of enabled types stores the default ones, which
+     * include them.
+     */
+    protected static boolean storesProfileEvents(RealmModel realm) {
+        if (!realm.isEventsEnabled()) {
+            return false;
+        }
+        var types = realm.getEnabledEventTypesStream().collect(Collectors.toSet());
+        return types.isEmpty() || types.containsAll(
+                Set.of(EventType.UPDATE_PROFILE.name(), EventType.UPDATE_EMAIL.name(), EventType.DELETE_ACCOUNT.name()));
+    }
+
+    public Set<String> getUserIds() {
+        return userIds;
+    }
+
+    public Set<String> getGroupIds() {
+        return groupIds;
+    }
+
+    /**
+     * Whether every change of the period was tracked. If not, an incremental sync
+     * would miss some of them.
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    protected void collectCreatedUsers(KeycloakSession session, RealmModel realm, long since) {
+        session.getProvider(JpaConnectionProvider.class).getEntityManager()
+                .createQuery("select u.id from UserEntity u where u.realmId = :realmId and u.createdTimestamp >= :since",
+                        String.class)
+                .setParameter("realmId", realm.getId())
+                .setParameter("since", since)
+                .getResultStream()
+                .forEach(userIds::add);
+    }
+
+    protected void collectAdminEvents(EventStoreProvider events, RealmModel realm, long since) {
+        events.createAdminQuery()
+                .realm(realm.getId())
+                .resourceType(ResourceType.USER, ResourceType.GROUP, ResourceType.GROUP_MEMBERSHIP,
+                        ResourceType.REALM_ROLE_MAPPING)
+                .fromTime(new Date(since))
+                .getResultStream()
+                .forEach(event -> collectPath(event.getResourcePath()));
+    }
+
+    protected void collectUserEvents(EventStoreProvider events, RealmModel realm, long since) {
+        events.createQuery()
+                .realm(realm.getId())
+                .type(EventType.UPDATE_PROFILE, EventType.UPDATE_EMAIL, EventType.VERIFY_EMAIL,
+                        EventType.DELETE_ACCOUNT)
+                .fromDate(new Date(since))
+                .getResultStream()
+                .forEach(event -> {
+                    if (event.getUserId() != null) {
+                        userIds.add(event.getUserId());
+                    }
+                });
+    }
+
+    /**
+     * Reads the users and groups out of an admin event path, e.g.
+     * users/{id}/groups/{id}, groups/{id}/children/{id} or groups/{id}/role-mappings.
+     */
+    protected void collectPath(String path) {
+        if (path == null) {
+            return;
+        }
+        var segments = path.split("/");
+        if (segments.length < 2) {
+            return;
+        }
+        if ("users".equals(segments[0])) {
+            userIds.add(segments[1]);
+            if (segments.length > 3 && "groups".equals(segments[2])) {
+                groupIds.add(segments[3]);
+            }
+        } else if ("groups".equals(segments[0])) {
+            if (segments.length > 2 && "role-mappings".equals(segments[2])) {
+                roleMappingGroupIds.add(segments[1]);
+                return;
+            }
+            groupIds.add(segments[1]);
+            if (segments.length > 3 && "children".equals(segments[2])) {
+                groupIds.add(segments[3]);
+            }
+        }
+    }
+
+    protected void collectOutbox(KeycloakSession session, ComponentModel model, long since) {
+        session.getProvider(JpaConnectionProvider.class).getEntityManager()
+                .createNamedQuery("findOutboxEntriesSince", ScimOutboxEntry.class)
+                .setParameter("componentId", model.getId())
+                .setParameter("since", since)
+                .getResultStream()
+                .forEach(entry -> {
+                    if (ScimOperation.TYPE_USER.equals(entry.getResourceType())) {
+                        userIds.add(entry.getResourceId());
+                    } else if (ScimOperation.Type.REPLACE_MEMBERS.name().equals(entry.getOperation())) {
+                        roleMappingGroupIds.add(entry.getResourceId());
+                    } else {
+                        groupIds.add(entry.getResourceId());
+                        if (entry.getMemberId() != null) {
+                            userIds.add(entry.getMemberId());
+                        }
+                    }
+                });
+    }
+
+    /**
+     * The SCIM roles of every member of a group change with the group's role mappings.
+     */
+    protected void expandRoleMappingGroups(KeycloakSession session, RealmModel realm) {
+        for (var groupId : roleMappingGroupIds) {
+            var group = session.groups().getGroupById(realm, groupId);
+            if (group != null) {
+                Adapter.paged((first, max) -> session.users().getGroupMembersStream(realm, group, first, max),
+                        Adapter.DEFAULT_PAGE_SIZE).forEach(user -> userIds.add(user.getId()));
+            }
+        }
+    }
+}
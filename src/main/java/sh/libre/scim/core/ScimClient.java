@@ -1,102 +1,90 @@
 package sh.libre.scim.core;
 
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import jakarta.persistence.EntityManager;
 import jakarta.persistence.NoResultException;
-import jakarta.ws.rs.ProcessingException;
 
-import de.captaingoldfish.scim.sdk.client.ScimClientConfig;
 import de.captaingoldfish.scim.sdk.client.ScimRequestBuilder;
-import de.captaingoldfish.scim.sdk.client.http.BasicAuth;
 import de.captaingoldfish.scim.sdk.client.response.ServerResponse;
+import de.captaingoldfish.scim.sdk.common.constants.enums.HttpMethod;
 import de.captaingoldfish.scim.sdk.common.exceptions.ResponseException;
 import de.captaingoldfish.scim.sdk.common.resources.ResourceNode;
-import de.captaingoldfish.scim.sdk.common.response.ListResponse;
 
+import org.apache.commons.lang3.StringUtils;
 import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RoleMapperModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.storage.user.SynchronizationResult;
+import sh.libre.scim.jpa.ScimMappingCache;
+import sh.libre.scim.jpa.ScimResource;
+import sh.libre.scim.jpa.ScimSyncState;
+import sh.libre.scim.jpa.ScimSyncStateId;
 import sh.libre.scim.storage.ScimSynchronizationResult;
 
-import com.google.common.net.HttpHeaders;
-
-import io.github.resilience4j.core.IntervalFunction;
-import io.github.resilience4j.retry.RetryConfig;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
 import io.github.resilience4j.retry.RetryRegistry;
 
 
 public class ScimClient {
     final protected Logger LOGGER = Logger.getLogger(ScimClient.class);
+    final protected static int MEMBER_PAGE_SIZE = 500;
+    final protected static int DEFAULT_CHUNK_SIZE = 100;
+    // How long a request waits for the target's throttle, in a sync or in propagation
+    final protected static long INLINE_THROTTLE_WAIT = TimeUnit.MINUTES.toMillis(10);
+    final protected static long PROPAGATION_THROTTLE_WAIT = TimeUnit.SECONDS.toMillis(1);
+    final protected ScimTarget target;
     final protected ScimRequestBuilder scimRequestBuilder;
     final protected RetryRegistry registry;
     final protected KeycloakSession session;
-    final protected String contentType;
     final protected ComponentModel model;
     final protected String scimApplicationBaseUrl;
-    final protected Map<String, String> defaultHeaders;
-    final protected Map<String, String> expectedResponseHeaders;
+    final protected Map<String, Map<String, String>> remoteIndexes;
+    protected boolean inlineRetry = true;
+    private boolean closed = false;
+    // Called while long operations make progress, e.g. to keep an outbox lease
+    protected Runnable heartbeat = () -> {
+    };
+    // Sync states read by this client, by type, so every save goes through the same instance
+    final protected Map<String, ScimSyncState> syncStates = new HashMap<>();
+    protected ScimSyncCheckpoint checkpoint;
 
     public ScimClient(ComponentModel model, KeycloakSession session) {
+        this(model, session, new ConcurrentHashMap<>());
+    }
+
+    protected ScimClient(ComponentModel model, KeycloakSession session, Map<String, Map<String, String>> remoteIndexes) {
         this.model = model;
-        this.contentType = model.get("content-type");
         this.session = session;
         this.scimApplicationBaseUrl = model.get("endpoint");
-        this.defaultHeaders = new HashMap<>();
-        this.expectedResponseHeaders = new HashMap<>();
-
-        switch (model.get("auth-mode")) {
-            case "BEARER":
-                defaultHeaders.put(HttpHeaders.AUTHORIZATION,
-                    BearerAuthentication(model.get("auth-pass")));
-                break;
-            case "BASIC_AUTH":
-                defaultHeaders.put(HttpHeaders.AUTHORIZATION,
-                    BasicAuthentication(model.get("auth-user"),
-                                        model.get("auth-pass")));
-                break;
-        }
-
-        defaultHeaders.put(HttpHeaders.CONTENT_TYPE, contentType);
-
-        scimRequestBuilder = new ScimRequestBuilder(scimApplicationBaseUrl, genScimClientConfig());
-
-        RetryConfig retryConfig = RetryConfig.custom()
-            .maxAttempts(10)
-            .intervalFunction(IntervalFunction.ofExponentialBackoff())
-            .retryExceptions(ProcessingException.class)
-            .build();
-
-        registry = RetryRegistry.of(retryConfig);
-    }
-
-    protected String BasicAuthentication(String username, String password) {
-        return  BasicAuth.builder()
-        .username(model.get(username))
-        .password(model.get(password))
-        .build()
-        .getAuthorizationHeaderValue();
-    }
-
-    protected ScimClientConfig genScimClientConfig() {
-        return ScimClientConfig.builder()
-        .httpHeaders(defaultHeaders)
-        .connectTimeout(30)
-        .requestTimeout(30)
-        .socketTimeout(30)
-        .expectedHttpResponseHeaders(expectedResponseHeaders)
-        .hostnameVerifier((s, sslSession) -> true)
-        .build();
-    }
-
-    protected String BearerAuthentication(String token) {
-        return "Bearer " + token ;
+        this.target = ScimTarget.acquire(model);
+        this.scimRequestBuilder = target.getScimRequestBuilder();
+        this.registry = target.getRegistry();
+        this.remoteIndexes = remoteIndexes;
     }
 
     protected String genScimUrl(String scimEndpoint, String resourcePath) {
@@ -123,83 +111,182 @@ public class ScimClient {
             throw new RuntimeException(e);
         }
     }
-    private <S extends ResourceNode> List<S> fetchAllResources(String endpoint, Class<S> resourceClass) {
-        List<S> allResources = new ArrayList<>();
-        try {
-            String listUrl = scimApplicationBaseUrl + "/" + endpoint;
-            LOGGER.infof("Sending SCIM list request to URL: %s", listUrl);
-            ServerResponse<ListResponse<S>> pageResponse = scimRequestBuilder
-                .list(listUrl, resourceClass)
-                .get()
-                .sendRequest();
-            LOGGER.info("Received response for list request: status=" + pageResponse.getHttpStatus() + ", success=" + pageResponse.isSuccess());
-            if (pageResponse.isSuccess()) {
-                ListResponse<S> page = pageResponse.getResource();
-                allResources.addAll(page.getListedResources());
-                LOGGER.infof("Fetched %d resources from response", allResources.size());
-                // Note: Assuming Databricks returns all resources in one page or we take the first page
-            } else {
-                LOGGER.warnf("Failed to fetch resources: HTTP %d - %s", pageResponse.getHttpStatus(), pageResponse.getResponseBody());
+    /**
+     * Failures are returned or thrown right away instead of being retried on the
+     * calling thread, for callers that retry them later through the outbox.
+     */
+    public ScimClient withoutInlineRetry() {
+        this.inlineRetry = false;
+        return this;
+    }
+
+    /**
+     * Runs the heartbeat after each step of long operations, such as each page of
+     * members replaced by {@link #replaceMembers(GroupModel)}.
+     */
+    public ScimClient withHeartbeat(Runnable heartbeat) {
+        this.heartbeat = heartbeat;
+        return this;
+    }
+
+    /**
+     * Sends a request to the target through its throttle and circuit breaker and,
+     * unless disabled, with the operation's retry policy (I/O errors, 429 and 5xx),
+     * recording latency and status in {@link ScimMetrics}.
+     */
+    protected <T> ServerResponse<T> send(String resourceType, String operation, Supplier<ServerResponse<T>> request) {
+        return send(resourceType, operation, request, inlineRetry);
+    }
+
+    /**
+     * Same as {@link #send(String, String, Supplier)}, retrying only when retry is
+     * set, for requests that aren't safe to send twice.
+     */
+    protected <T> ServerResponse<T> send(String resourceType, String operation, Supplier<ServerResponse<T>> request,
+            boolean retry) {
+        var maxWait = inlineRetry ? INLINE_THROTTLE_WAIT : PROPAGATION_THROTTLE_WAIT;
+        Supplier<ServerResponse<T>> call = () -> target.getThrottle().execute(maxWait, target.getCircuitBreaker()
+                .decorateSupplier(() -> ScimMetrics.record(model, resourceType, operation, request)));
+        if (!retry) {
+            return call.get();
+        }
+        return registry.retry(operation).executeSupplier(call);
+    }
+
+    protected <S extends ResourceNode> ScimPageIterator<S> listResources(String endpoint, Class<S> resourceClass,
+            String filter) {
+        return new ScimPageIterator<>(this, scimApplicationBaseUrl + "/" + endpoint, resourceClass,
+                filter, this.model.get("list-page-size", 100));
+    }
+
+    private <S extends ResourceNode> boolean matches(S resource, String targetEmail, String targetDisplayName) {
+        if (!targetEmail.isEmpty()
+                && resource instanceof de.captaingoldfish.scim.sdk.common.resources.User user) {
+            var emails = user.getEmails();
+            if (emails != null) {
+                for (var email : emails) {
+                    if (email.getValue().isPresent()) {
+                        String resEmail = email.getValue().get();
+                        LOGGER.debugf("Checking resource email: %s against target: %s", resEmail, targetEmail);
+                        if (targetEmail.equalsIgnoreCase(resEmail)) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        } else if (!targetDisplayName.isEmpty()
+                && resource instanceof de.captaingoldfish.scim.sdk.common.resources.Group group) {
+            String resDisplayName = group.getDisplayName().orElse("");
+            LOGGER.debugf("Checking resource displayName: %s against target: %s", resDisplayName, targetDisplayName);
+            return targetDisplayName.equals(resDisplayName);
+        }
+        return false;
+    }
+
+    protected static String escapeFilterValue(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    /**
+     * Looks up the remote resource matching the adapter's email (users) or display
+     * name (groups) with a SCIM filter query.
+     */
+    private <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> String findExistingWithFilter(
+            A adapter, String targetEmail, String targetDisplayName) {
+        String filter;
+        if (!targetEmail.isEmpty()) {
+            filter = "emails.value eq \"%s\"".formatted(escapeFilterValue(targetEmail));
+        } else if (!targetDisplayName.isEmpty()) {
+            filter = "displayName eq \"%s\"".formatted(escapeFilterValue(targetDisplayName));
+        } else {
+            return null;
+        }
+        LOGGER.debugf("Looking up existing resource for %s with filter %s", adapter.getId(), filter);
+        var pages = listResources(adapter.getSCIMEndpoint(), adapter.getResourceClass(), filter);
+        if (pages.hasNext()) {
+            for (S resource : pages.next()) {
+                if (matches(resource, targetEmail, targetDisplayName)) {
+                    return resource.getId().orElse(null);
+                }
             }
-        } catch (Exception e) {
-            LOGGER.error("Failed to fetch resources", e);
-            LOGGER.errorf("Failed to fetch resources: %s", e.getMessage());
         }
-        return allResources;
+        return null;
+    }
+
+    /**
+     * Returns the index of remote resources by lower-cased email (users) or display
+     * name (groups). It is built with a single scan the first time it is needed and
+     * reused for the lifetime of this client, i.e. for the whole sync run.
+     */
+    private <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> Map<String, String> getRemoteIndex(
+            A adapter) {
+        return remoteIndexes.computeIfAbsent(adapter.getSCIMEndpoint(), endpoint -> {
+            LOGGER.infof("Indexing remote %s for client-side matching", endpoint);
+            var index = new HashMap<String, String>();
+            var pages = listResources(endpoint, adapter.getResourceClass(), null);
+            while (pages.hasNext()) {
+                for (S resource : pages.next()) {
+                    var externalId = resource.getId().orElse(null);
+                    if (externalId == null) {
+                        continue;
+                    }
+                    if (resource instanceof de.captaingoldfish.scim.sdk.common.resources.User user
+                            && user.getEmails() != null) {
+                        for (var email : user.getEmails()) {
+                            email.getValue().ifPresent(v -> index.putIfAbsent(v.toLowerCase(), externalId));
+                        }
+                    } else if (resource instanceof de.captaingoldfish.scim.sdk.common.resources.Group group) {
+                        group.getDisplayName().ifPresent(v -> index.putIfAbsent(v, externalId));
+                    }
+                }
+            }
+            LOGGER.infof("Indexed %d remote %s", index.size(), endpoint);
+            return index;
+        });
     }
 
     private <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> boolean tryMapToExisting(Class<A> aClass, M kcModel) {
         var adapter = getAdapter(aClass);
         adapter.apply(kcModel);
         try {
-            LOGGER.infof("Fetching all resources for client-side filtering for %s", adapter.getId());
-            List<S> allResources = fetchAllResources(adapter.getSCIMEndpoint(), adapter.getResourceClass());
-            LOGGER.infof("Fetched %d resources for client-side filtering", allResources.size());
-            S existingResource = null;
             String targetEmail = "";
             String targetDisplayName = "";
             if (adapter instanceof UserAdapter userAdapter) {
-                targetEmail = userAdapter.getEmail();
+                targetEmail = StringUtils.defaultString(userAdapter.getEmail());
                 LOGGER.infof("Target email for mapping: %s", targetEmail);
             } else if (adapter instanceof GroupAdapter groupAdapter) {
-                targetDisplayName = groupAdapter.getDisplayName();
+                targetDisplayName = StringUtils.defaultString(groupAdapter.getDisplayName());
                 LOGGER.infof("Target displayName for mapping: %s", targetDisplayName);
             }
-            for (S resource : allResources) {
-                boolean match = false;
-                if (adapter instanceof UserAdapter && !targetEmail.isEmpty()) {
-                    if (resource instanceof de.captaingoldfish.scim.sdk.common.resources.User user) {
-                        var emails = user.getEmails();
-                        if (emails != null) {
-                            for (var email : emails) {
-                                if (email.getValue().isPresent()) {
-                                    String resEmail = email.getValue().get();
-                                    LOGGER.debugf("Checking resource email: %s against target: %s", resEmail, targetEmail);
-                                    if (targetEmail.equalsIgnoreCase(resEmail)) {
-                                        match = true;
-                                        break;
-                                    }
-                                }
-                            }
-                        }
-                    }
-                } else if (adapter instanceof GroupAdapter && !targetDisplayName.isEmpty()) {
-                    if (resource instanceof de.captaingoldfish.scim.sdk.common.resources.Group group) {
-                        String resDisplayName = group.getDisplayName().orElse("");
-                        LOGGER.debugf("Checking resource displayName: %s against target: %s", resDisplayName, targetDisplayName);
-                        if (targetDisplayName.equals(resDisplayName)) {
-                            match = true;
-                        }
-                    }
-                }
-                if (match) {
-                    existingResource = resource;
-                    LOGGER.infof("Found existing resource via client filter: %s", existingResource.getId());
-                    break;
+            String existingId = null;
+            boolean filtered = false;
+            if (target.supportsFiltering()) {
+                try {
+                    existingId = findExistingWithFilter(adapter, targetEmail, targetDisplayName);
+                    filtered = true;
+                } catch (Exception e) {
+                    LOGGER.warnf("Filter lookup failed for %s, falling back to client-side matching: %s",
+                            adapter.getId(), e.getMessage());
                 }
             }
-            if (existingResource != null) {
-                adapter.apply(existingResource);
+            if (!filtered) {
+                var index = getRemoteIndex(adapter);
+                existingId = !targetEmail.isEmpty() ? index.get(targetEmail.toLowerCase()) : index.get(targetDisplayName);
+            }
+            if (existingId != null && adapter.getExternalId(adapter.getType(), adapter.getId()) != null) {
+                // Mapped meanwhile, e.g. by an import
+                LOGGER.infof("%s is already mapped, skipping", adapter.getId());
+                return true;
+            }
+            if (existingId != null
+                    && !adapter.getInternalIds(adapter.getType(), List.of(existingId)).isEmpty()) {
+                LOGGER.warnf("Existing resource %s is already mapped to another local resource, not mapping %s",
+                        existingId, adapter.getId());
+                return false;
+            }
+            if (existingId != null) {
+                LOGGER.infof("Found existing resource: %s", existingId);
+                adapter.setExternalId(existingId);
                 adapter.saveMapping();
                 LOGGER.infof("Mapped to existing resource for %s", adapter.getId());
                 this.replace(aClass, kcModel);
@@ -221,7 +308,7 @@ public class ScimClient {
             return null;
         }
         // If mapping exist then it was created by import so skip.
-        if (adapter.query("findById", adapter.getId()).getResultList().size() != 0) {
+        if (adapter.getExternalId(adapter.getType(), adapter.getId()) != null) {
             return null;
         }
 
@@ -242,9 +329,7 @@ public class ScimClient {
         }
 
         LOGGER.debugf("Creating SCIM resource for %s", adapter.getId());
-        var retry = registry.retry("create-" + adapter.getId());
-
-        ServerResponse<S> response = retry.executeSupplier(() -> {
+        ServerResponse<S> response = send(adapter.getType(), "create", () -> {
             try {
                 return scimRequestBuilder
                 .create(adapter.getResourceClass(), ("/" + adapter.getSCIMEndpoint()).formatted())
@@ -267,6 +352,7 @@ public class ScimClient {
 
         if (response.isSuccess()) {
             adapter.apply(response.getResource());
+            adapter.setContentHash(adapter.getFingerprint());
             adapter.saveMapping();
         }
         return response;
@@ -274,109 +360,250 @@ public class ScimClient {
 
     public <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void replace(Class<A> aClass,
             M kcModel) {
+        try {
+            tryReplace(aClass, kcModel);
+        } catch (Exception e) {
+            LOGGER.error(e);
+        }
+    }
+
+    public <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> ServerResponse<S> tryReplace(
+            Class<A> aClass, M kcModel) throws ResponseException {
+        return tryReplace(aClass, kcModel, false);
+    }
+
+    /**
+     * Same as {@link #replace(Class, RoleMapperModel)} but lets failures propagate to the caller.
+     * Returns null when nothing was sent, either because the resource is skipped or
+     * because it didn't change since it was last sent and force is false.
+     */
+    public <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> ServerResponse<S> tryReplace(
+            Class<A> aClass, M kcModel, boolean force) throws ResponseException {
         var adapter = getAdapter(aClass);
+        adapter.apply(kcModel);
+        if (adapter.skip) {
+            return null;
+        }
+        ScimResource resource;
         try {
-            adapter.apply(kcModel);
-            if (adapter.skip) {
-                return;
+            resource = adapter.query("findById", adapter.getId()).getSingleResult();
+        } catch (NoResultException e) {
+            LOGGER.warnf("failed to replace resource %s, scim mapping not found", adapter.getId());
+            return null;
+        }
+        adapter.apply(resource);
+        var fingerprint = adapter.getFingerprint();
+        if (!force && fingerprint.equals(resource.getContentHash())) {
+            LOGGER.debugf("SCIM resource for %s is unchanged, skipping replace", adapter.getId());
+            return null;
+        }
+        String url = genScimUrl(adapter.getSCIMEndpoint(), adapter.getExternalId());
+        LOGGER.debugf("Replacing SCIM resource for %s at %s", adapter.getId(), url);
+        ServerResponse<S> response = send(adapter.getType(), "replace", () -> {
+            try {
+                LOGGER.debug(adapter.getType());
+                if ((adapter.getType() == "Group" && this.model.get("group-patchOp", false))
+                     || (adapter.getType() == "User" && this.model.get("user-patchOp", false))) {
+                    return adapter.toPatchBuilder(scimRequestBuilder, url)
+                                  .sendRequest();
+                }
+                else {
+                    return scimRequestBuilder
+                        .update(url, adapter.getResourceClass())
+                        .setResource(adapter.toSCIM(false))
+                        .sendRequest();
+                }
+            } catch (ResponseException e) {
+                throw new RuntimeException(e);
             }
-            var resource = adapter.query("findById", adapter.getId()).getSingleResult();
-            adapter.apply(resource);
-            String url = genScimUrl(adapter.getSCIMEndpoint(), adapter.getExternalId());
-            LOGGER.debugf("Replacing SCIM resource for %s at %s", adapter.getId(), url);
-            var retry = registry.retry("replace-" + adapter.getId());
-            ServerResponse<S> response = retry.executeSupplier(() -> {
-                try {
-                    LOGGER.debug(adapter.getType());
-                    if ((adapter.getType() == "Group" && this.model.get("group-patchOp", false))
-                         || (adapter.getType() == "User" && this.model.get("user-patchOp", false))) {
-                        return adapter.toPatchBuilder(scimRequestBuilder, url)
-                                      .sendRequest();
-                    }
-                    else {
-                        return scimRequestBuilder
-                            .update(url, adapter.getResourceClass())
+        });
+        
+        // Handle error responses
+        if (!response.isSuccess()) {
+            int statusCode = response.getHttpStatus();
+            if (statusCode == 405 && adapter.getType().equals("Group") && !this.model.get("group-patchOp", false)) {
+                // PUT not supported for groups, try multiple PATCH operations for Databricks compatibility
+                LOGGER.infof("PUT not supported for groups (405), trying separate PATCH operations for %s", adapter.getId());
+                
+                // For now, just patch members since that's the main issue
+                // TODO: Add support for patching displayName and externalId separately
+                response = send(adapter.getType(), "patch", () -> adapter.toPatchBuilder(scimRequestBuilder, url).sendRequest());
+                
+                // Check if PATCH also failed with 404/400 (group not found)
+                if (!response.isSuccess()) {
+                    int patchStatusCode = response.getHttpStatus();
+                    if (patchStatusCode == 404 || patchStatusCode == 400) {
+                        // Resource doesn't exist, create it
+                        LOGGER.infof("Resource %s not found after PATCH (%d), creating instead", adapter.getId(), patchStatusCode);
+                        ServerResponse<S> createResponse = send(adapter.getType(), "create", () -> scimRequestBuilder
+                            .create(adapter.getResourceClass(), ("/" + adapter.getSCIMEndpoint()).formatted())
                             .setResource(adapter.toSCIM(false))
-                            .sendRequest();
-                    }
-                } catch (ResponseException e) {
-                    throw new RuntimeException(e);
-                }
-            });
-            
-            // Handle error responses
-            if (!response.isSuccess()) {
-                int statusCode = response.getHttpStatus();
-                if (statusCode == 405 && adapter.getType().equals("Group") && !this.model.get("group-patchOp", false)) {
-                    // PUT not supported for groups, try multiple PATCH operations for Databricks compatibility
-                    LOGGER.infof("PUT not supported for groups (405), trying separate PATCH operations for %s", adapter.getId());
-                    
-                    // For now, just patch members since that's the main issue
-                    // TODO: Add support for patching displayName and externalId separately
-                    response = adapter.toPatchBuilder(scimRequestBuilder, url).sendRequest();
-                    
-                    // Check if PATCH also failed with 404/400 (group not found)
-                    if (!response.isSuccess()) {
-                        int patchStatusCode = response.getHttpStatus();
-                        if (patchStatusCode == 404 || patchStatusCode == 400) {
-                            // Resource doesn't exist, create it
-                            LOGGER.infof("Resource %s not found after PATCH (%d), creating instead", adapter.getId(), patchStatusCode);
-                            ServerResponse<S> createResponse = scimRequestBuilder
-                                .create(adapter.getResourceClass(), ("/" + adapter.getSCIMEndpoint()).formatted())
-                                .setResource(adapter.toSCIM(false))
-                                .sendRequest();
-                            if (createResponse.isSuccess()) {
-                                // Update the existing mapping with the new externalId
-                                adapter.apply(createResponse.getResource());
-                                var existingMapping = adapter.getMapping();
-                                if (existingMapping != null) {
-                                    existingMapping.setExternalId(adapter.getExternalId());
-                                    getEM().merge(existingMapping);
-                                } else {
-                                    adapter.saveMapping();
-                                }
-                                response = createResponse; // Use the successful create response
+                            .sendRequest());
+                        if (createResponse.isSuccess()) {
+                            // Update the existing mapping with the new externalId
+                            adapter.apply(createResponse.getResource());
+                            var existingMapping = adapter.getMapping();
+                            if (existingMapping != null) {
+                                adapter.updateMapping(existingMapping, adapter.getExternalId());
                             } else {
-                                response = createResponse; // Return the failed create response for logging
+                                adapter.saveMapping();
                             }
-                        }
-                    }
-                } else if (statusCode == 404 || statusCode == 400) {
-                    // Resource doesn't exist, create it
-                    LOGGER.infof("Resource %s not found (%d), creating instead", adapter.getId(), statusCode);
-                    ServerResponse<S> createResponse = scimRequestBuilder
-                        .create(adapter.getResourceClass(), ("/" + adapter.getSCIMEndpoint()).formatted())
-                        .setResource(adapter.toSCIM(false))
-                        .sendRequest();
-                    if (createResponse.isSuccess()) {
-                        // Update the existing mapping with the new externalId
-                        adapter.apply(createResponse.getResource());
-                        var existingMapping = adapter.getMapping();
-                        if (existingMapping != null) {
-                            existingMapping.setExternalId(adapter.getExternalId());
-                            getEM().merge(existingMapping);
+                            response = createResponse; // Use the successful create response
                         } else {
-                            adapter.saveMapping();
+                            response = createResponse; // Return the failed create response for logging
                         }
-                        response = createResponse; // Use the successful create response
+                    }
+                }
+            } else if (statusCode == 404 || statusCode == 400) {
+                // Resource doesn't exist, create it
+                LOGGER.infof("Resource %s not found (%d), creating instead", adapter.getId(), statusCode);
+                ServerResponse<S> createResponse = send(adapter.getType(), "create", () -> scimRequestBuilder
+                    .create(adapter.getResourceClass(), ("/" + adapter.getSCIMEndpoint()).formatted())
+                    .setResource(adapter.toSCIM(false))
+                    .sendRequest());
+                if (createResponse.isSuccess()) {
+                    // Update the existing mapping with the new externalId
+                    adapter.apply(createResponse.getResource());
+                    var existingMapping = adapter.getMapping();
+                    if (existingMapping != null) {
+                        adapter.updateMapping(existingMapping, adapter.getExternalId());
                     } else {
-                        response = createResponse; // Return the failed create response for logging
+                        adapter.saveMapping();
                     }
+                    response = createResponse; // Use the successful create response
+                } else {
+                    response = createResponse; // Return the failed create response for logging
                 }
             }
-            
-            if (!response.isSuccess()){
-                LOGGER.warn(response.getResponseBody());
-                LOGGER.debug(response.getHttpStatus());
+        }
+        
+        if (response.isSuccess()) {
+            var mapping = adapter.getMapping();
+            if (mapping != null) {
+                mapping.setContentHash(fingerprint);
             }
-        } catch (NoResultException e) {
-            LOGGER.warnf("failed to replace resource %s, scim mapping not found", adapter.getId());
-        } catch (Exception e) {
-            LOGGER.error(e);
+        } else {
+            LOGGER.warn(response.getResponseBody());
+            LOGGER.debug(response.getHttpStatus());
         }
+        return response;
     }
 
-    public <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void delete(Class<A> aClass,
+    /**
+     * Propagates a single user joining or leaving a group as an add/remove PATCH on
+     * the group's members. Falls back to replacing the group when the server doesn't
+     * support PATCH or rejects the delta.
+     */
+    public ServerResponse<?> patchMember(GroupModel group, String userId, boolean add) throws ResponseException {
+        if (!this.model.get("group-patchOp", false) && !target.supportsPatch()) {
+            return tryReplace(GroupAdapter.class, group);
+        }
+        var adapter = getAdapter(GroupAdapter.class);
+        adapter.setId(group.getId());
+        var groupMapping = adapter.getMapping();
+        if (groupMapping == null) {
+            LOGGER.warnf("failed to patch members of group %s, scim mapping not found", group.getId());
+            return null;
+        }
+        adapter.apply(groupMapping);
+        var memberExternalId = adapter.getExternalId(ScimOperation.TYPE_USER, userId);
+        if (memberExternalId == null) {
+            if (add && isPendingCreate(userId)) {
+                // The user's CREATE hasn't run yet, fail so the addition is retried after it
+                throw new RuntimeException(String.format(
+                        "User %s is not on the SCIM server yet, can't add it to group %s", userId, group.getId()));
+            }
+            LOGGER.debugf("User %s has no scim mapping, nothing to patch on group %s", userId, group.getId());
+            return null;
+        }
+        String url = genScimUrl(adapter.getSCIMEndpoint(), adapter.getExternalId());
+        LOGGER.debugf("%s member %s on group %s", add ? "Adding" : "Removing", memberExternalId, url);
+        ServerResponse<?> response = send(adapter.getType(), "patch-member", () -> adapter
+                .toMemberPatchBuilder(scimRequestBuilder, url, memberExternalId, add)
+                .sendRequest());
+        if (response.isSuccess()) {
+            // The stored fingerprint no longer describes what the server has
+            groupMapping.setContentHash(null);
+            return response;
+        }
+        if (response.getHttpStatus() >= 400 && response.getHttpStatus() < 500) {
+            LOGGER.infof("Member PATCH rejected for group %s (%d), replacing the group instead", group.getId(),
+                    response.getHttpStatus());
+            return tryReplace(GroupAdapter.class, group, true);
+        }
+        LOGGER.warn(response.getResponseBody());
+        return response;
+    }
+
+    /**
+     * Whether the user should be on the SCIM server but has no mapping yet, as
+     * when its creation is still queued or was deferred after a failure.
+     */
+    protected boolean isPendingCreate(String userId) {
+        var user = session.users().getUserById(session.getContext().getRealm(), userId);
+        return user != null && !StringUtils.equals(user.getFirstAttribute("scim-skip"), "true")
+                && getAdapter(UserAdapter.class).isInSyncScope(user);
+    }
+
+    /**
+     * Replaces every member of the group, after the group's role mappings changed.
+     * Members are read one page at a time, each page in its own transaction, and
+     * members whose representation didn't change are skipped by tryReplace.
+     * Returns the last retryable error response, if any, so the whole fan-out can
+     * be retried later.
+     */
+    public ServerResponse<?> replaceMembers(GroupModel group) {
+        var sessionFactory = session.getKeycloakSessionFactory();
+        var realmId = getRealmId();
+        var groupId = group.getId();
+        var failure = new AtomicReference<ServerResponse<?>>();
+        var sent = new AtomicInteger();
+        int first = 0;
+        int count;
+        do {
+            var offset = first;
+            count = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, pageSession -> {
+                var realm = pageSession.realms().getRealm(realmId);
+                pageSession.getContext().setRealm(realm);
+                var pageGroup = pageSession.groups().getGroupById(realm, groupId);
+                if (pageGroup == null) {
+                    return 0;
+                }
+                var client = new ScimClient(model, pageSession, remoteIndexes);
+                client.inlineRetry = inlineRetry;
+                try {
+                    var members = pageSession.users()
+                            .getGroupMembersStream(realm, pageGroup, offset, MEMBER_PAGE_SIZE)
+                            .toList();
+                    for (var member : members) {
+                        try {
+                            var response = client.tryReplace(UserAdapter.class, member);
+                            if (response != null) {
+                                sent.incrementAndGet();
+                                if (ScimPropagationExecutor.isRetryable(response.getHttpStatus())) {
+                                    failure.set(response);
+                                }
+                            }
+                        } catch (CallNotPermittedException e) {
+                            // The target is down, retry the whole fan-out later
+                            throw e;
+                        } catch (Exception e) {
+                            LOGGER.errorf(e, "Failed to replace member %s of group %s", member.getId(), groupId);
+                        }
+                    }
+                    return members.size();
+                } finally {
+                    client.close();
+                }
+            });
+            first += count;
+            heartbeat.run();
+        } while (count == MEMBER_PAGE_SIZE);
+        LOGGER.infof("Replaced %d of %d members of group %s", sent.get(), first, groupId);
+        return failure.get();
+    }
+
+    public <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> ServerResponse<S> delete(Class<A> aClass,
             String id) {
         var adapter = getAdapter(aClass);
         adapter.setId(id);
@@ -386,9 +613,7 @@ public class ScimClient {
             var resource = adapter.query("findById", adapter.getId()).getSingleResult();
             adapter.apply(resource);
 
-            var retry = registry.retry("delete-" + id);
-
-            ServerResponse<S> response = retry.executeSupplier(() -> {
+            ServerResponse<S> response = send(adapter.getType(), "delete", () -> {
                 try {
                     return scimRequestBuilder.delete(genScimUrl(adapter.getSCIMEndpoint(), adapter.getExternalId()),
                                                                 adapter.getResourceClass())
@@ -401,138 +626,667 @@ public class ScimClient {
             if (!response.isSuccess()){
                 LOGGER.warn(response.getResponseBody());
                 LOGGER.debug(response.getHttpStatus());
+                if (ScimPropagationExecutor.isRetryable(response.getHttpStatus())) {
+                    // Keep the mapping so the delete can be retried
+                    return response;
+                }
             }
 
             getEM().remove(resource);
-
+            ScimMappingCache.changed(session, resource);
+            return response;
         } catch (NoResultException e) {
             LOGGER.warnf("Failed to delete resource %s, scim mapping not found", id);
         }
+        return null;
     }
 
     public <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void refreshResources(
             Class<A> aClass,
             SynchronizationResult syncRes) {
         LOGGER.debugf("Refreshing resources for %s", aClass.getSimpleName());
-        getAdapter(aClass).getResourceStream().forEach(resource -> {
-            var adapter = getAdapter(aClass);
-            adapter.apply(resource);
-            String resourceInfo = getResourceInfo(adapter);
-            LOGGER.infof("Reconciling local resource %s: %s", adapter.getId(), resourceInfo);
-            if (!adapter.skipRefresh()) {
-                var mapping = adapter.getMapping();
-                if (mapping == null) {
-                    LOGGER.infof("Creating remote resource for %s", resourceInfo);
-                    ServerResponse<S> createResponse = this.create(aClass, resource);
-                    if (createResponse != null && createResponse.isSuccess()) {
-                        trackAdded(syncRes, adapter, resourceInfo);
-                    } else if (adapter.getMapping() != null) {
-                        // Mapped to existing
-                        trackMapped(syncRes, adapter, resourceInfo);
-                    } else {
-                        trackFailed(syncRes, adapter, resourceInfo + " (create failed)");
+        var position = checkpoint == null ? 0 : (int) checkpoint.getCursor(ScimSyncCheckpoint.PHASE_REFRESH, 0);
+        if (checkpoint != null) {
+            checkpoint.save(ScimSyncCheckpoint.PHASE_REFRESH, position);
+        }
+        if (aClass == UserAdapter.class && this.model.get("sync-distributed", false)) {
+            ScimDistributedSync.refreshUsers(session, model, syncRes, checkpoint != null && checkpoint.isResumed());
+            return;
+        }
+        if (useBulk()) {
+            refreshResourcesBulk(aClass, syncRes, position);
+            return;
+        }
+        int concurrency = this.model.get("sync-concurrency", 1);
+        if (concurrency > 1) {
+            refreshResourcesParallel(aClass, syncRes, concurrency, position);
+            return;
+        }
+        if (position > 0) {
+            LOGGER.infof("Resuming refresh of %s after %d resources", aClass.getSimpleName(), position);
+        }
+        inChunks(getAdapter(aClass).getResourceIdStream(position), syncRes, (client, ids) -> {
+            var adapter = client.getAdapter(aClass);
+            for (var id : ids) {
+                var resource = adapter.getResourceById(id);
+                if (resource != null) {
+                    client.refreshResource(aClass, resource, syncRes);
+                }
+            }
+        }, refreshCheckpoint(position));
+    }
+
+    /**
+     * Saves the refresh position once each chunk is committed. Positions are
+     * indexes in the resource enumeration, so resources created or deleted
+     * meanwhile may shift a resumed refresh by a few; those are picked up by
+     * propagation or the next sync.
+     */
+    protected IntConsumer refreshCheckpoint(int position) {
+        return processed -> {
+            if (checkpoint != null) {
+                checkpoint.save(ScimSyncCheckpoint.PHASE_REFRESH, position + processed);
+            }
+        };
+    }
+
+    protected int getChunkSize() {
+        return Math.max(1, this.model.get("sync-chunk-size", DEFAULT_CHUNK_SIZE));
+    }
+
+    /**
+     * Hands the items to the work sync-chunk-size at a time, each chunk in its own
+     * session and transaction, so what a chunk loads and writes is committed and
+     * released before the next one. The persistence context of this session, which
+     * enumerates the items, is cleared between chunks too.
+     */
+    protected <T> void inChunks(Stream<T> items, SynchronizationResult syncRes,
+            BiConsumer<ScimClient, List<T>> work) {
+        inChunks(items, syncRes, work, processed -> {
+        });
+    }
+
+    /**
+     * Same as {@link #inChunks(Stream, SynchronizationResult, BiConsumer)}, telling
+     * committed how many items were processed after each chunk.
+     */
+    protected <T> void inChunks(Stream<T> items, SynchronizationResult syncRes,
+            BiConsumer<ScimClient, List<T>> work, IntConsumer committed) {
+        var chunkSize = getChunkSize();
+        var chunk = new ArrayList<T>(chunkSize);
+        var iterator = items.iterator();
+        var processed = 0;
+        while (iterator.hasNext()) {
+            chunk.add(iterator.next());
+            if (chunk.size() == chunkSize || !iterator.hasNext()) {
+                runChunk(List.copyOf(chunk), syncRes, work);
+                processed += chunk.size();
+                chunk.clear();
+                releaseEntities();
+                committed.accept(processed);
+            }
+        }
+    }
+
+    protected <T> void runChunk(List<T> chunk, SynchronizationResult syncRes, BiConsumer<ScimClient, List<T>> work) {
+        var realmId = getRealmId();
+        try {
+            KeycloakModelUtils.runJobInTransaction(session.getKeycloakSessionFactory(), chunkSession -> {
+                chunkSession.getContext().setRealm(chunkSession.realms().getRealm(realmId));
+                var client = new ScimClient(model, chunkSession, remoteIndexes);
+                client.inlineRetry = inlineRetry;
+                try {
+                    work.accept(client, chunk);
+                } finally {
+                    client.close();
+                }
+            });
+        } catch (Exception e) {
+            LOGGER.errorf(e, "Failed to commit a sync chunk of %d resources", chunk.size());
+            synchronized (syncRes) {
+                chunk.forEach(item -> syncRes.increaseFailed());
+            }
+        }
+    }
+
+    /**
+     * Writes pending changes of this session and detaches every entity it loaded.
+     */
+    protected void releaseEntities() {
+        var em = getEM();
+        em.flush();
+        em.clear();
+    }
+
+    /**
+     * Same as {@link #refreshResources(Class, SynchronizationResult)}, but resources are
+     * reconciled by a bounded pool of workers. Each resource is handled once, by one
+     * worker, in its own session and transaction. Resources finish out of order, so
+     * the saved position is the end of the last chunk of sync-chunk-size resources
+     * that, like every chunk before it, is entirely done.
+     */
+    protected <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void refreshResourcesParallel(
+            Class<A> aClass, SynchronizationResult syncRes, int concurrency, int position) {
+        LOGGER.infof("Refreshing %s with %d workers", aClass.getSimpleName(), concurrency);
+        if (position > 0) {
+            LOGGER.infof("Resuming refresh of %s after %d resources", aClass.getSimpleName(), position);
+        }
+        var sessionFactory = session.getKeycloakSessionFactory();
+        var realmId = getRealmId();
+        var threadCount = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, r -> {
+            var thread = new Thread(r, "scim-sync-" + model.getId() + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Bounds the number of ids waiting in the executor queue
+        var permits = new Semaphore(concurrency * 2);
+        var chunkSize = getChunkSize();
+        var enumerated = new AtomicInteger();
+        // Resources still running per chunk; chunks are removed once done
+        var outstanding = new HashMap<Integer, Integer>();
+        var completedChunks = new AtomicInteger();
+        var saveProgress = refreshCheckpoint(position);
+        try {
+            getAdapter(aClass).getResourceIdStream(position).forEach(id -> {
+                var index = enumerated.getAndIncrement();
+                if (index > 0 && index % chunkSize == 0) {
+                    releaseEntities();
+                    // Every chunk before this one is fully submitted
+                    var completed = completedChunks.get();
+                    synchronized (outstanding) {
+                        while (completed < index / chunkSize && !outstanding.containsKey(completed)) {
+                            completed++;
+                        }
                     }
+                    if (completed > completedChunks.get()) {
+                        completedChunks.set(completed);
+                        saveProgress.accept(completed * chunkSize);
+                    }
+                }
+                var chunk = index / chunkSize;
+                synchronized (outstanding) {
+                    outstanding.merge(chunk, 1, Integer::sum);
+                }
+                permits.acquireUninterruptibly();
+                try {
+                    executor.execute(() -> {
+                        try {
+                            KeycloakModelUtils.runJobInTransaction(sessionFactory, workerSession -> {
+                                workerSession.getContext().setRealm(workerSession.realms().getRealm(realmId));
+                                var client = new ScimClient(model, workerSession, remoteIndexes);
+                                try {
+                                    var resource = client.getAdapter(aClass).getResourceById(id);
+                                    if (resource != null) {
+                                        client.refreshResource(aClass, resource, syncRes);
+                                    }
+                                } finally {
+                                    client.close();
+                                }
+                            });
+                        } catch (Exception e) {
+                            LOGGER.errorf(e, "Failed to refresh %s %s", aClass.getSimpleName(), id);
+                            synchronized (syncRes) {
+                                syncRes.increaseFailed();
+                            }
+                        } finally {
+                            synchronized (outstanding) {
+                                outstanding.computeIfPresent(chunk, (key, count) -> count > 1 ? count - 1 : null);
+                            }
+                            permits.release();
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    permits.release();
+                    throw e;
+                }
+            });
+        } finally {
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    LOGGER.debugf("Waiting for %s refresh workers to finish", aClass.getSimpleName());
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Reconciles part of a shard of a distributed sync: a range of the realm's
+     * enabled users, skipping those outside the sync scope. Returns the number of
+     * users in the range.
+     */
+    public int refreshUserRange(int first, int max, SynchronizationResult syncRes) {
+        var adapter = getAdapter(UserAdapter.class);
+        var users = adapter.getResourceRange(first, max).toList();
+        users.stream()
+                .filter(adapter::isInSyncScope)
+                .forEach(user -> refreshResource(UserAdapter.class, user, syncRes));
+        return users.size();
+    }
+
+    protected <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void refreshResource(
+            Class<A> aClass, M resource, SynchronizationResult syncRes) {
+        var adapter = getAdapter(aClass);
+        adapter.apply(resource);
+        String resourceInfo = getResourceInfo(adapter);
+        LOGGER.infof("Reconciling local resource %s: %s", adapter.getId(), resourceInfo);
+        if (!adapter.skipRefresh()) {
+            var mapping = adapter.getMapping();
+            if (mapping == null) {
+                LOGGER.infof("Creating remote resource for %s", resourceInfo);
+                ServerResponse<S> createResponse = this.create(aClass, resource);
+                if (createResponse != null && createResponse.isSuccess()) {
+                    trackAdded(syncRes, adapter, resourceInfo);
+                } else if (adapter.getMapping() != null) {
+                    // Mapped to existing
+                    trackMapped(syncRes, adapter, resourceInfo);
                 } else {
-                    LOGGER.infof("Updating remote resource for %s", resourceInfo);
-                    this.replace(aClass, resource);
-                    trackUpdated(syncRes, adapter, resourceInfo);
+                    trackFailed(syncRes, adapter, resourceInfo + " (create failed)");
                 }
             } else {
-                LOGGER.infof("Skipping refresh for %s", resourceInfo);
+                LOGGER.infof("Updating remote resource for %s", resourceInfo);
+                try {
+                    var response = this.tryReplace(aClass, resource, this.model.get("sync-force-replace", false));
+                    if (response == null) {
+                        LOGGER.debugf("Remote resource for %s is up to date", resourceInfo);
+                    } else if (response.isSuccess()) {
+                        trackUpdated(syncRes, adapter, resourceInfo);
+                    } else {
+                        trackFailed(syncRes, adapter, resourceInfo + " (update failed: HTTP " + response.getHttpStatus() + ")");
+                    }
+                } catch (Exception e) {
+                    LOGGER.error(e);
+                    trackFailed(syncRes, adapter, resourceInfo + " (update failed: " + e.getMessage() + ")");
+                }
             }
-        });
+        } else {
+            LOGGER.infof("Skipping refresh for %s", resourceInfo);
+        }
+    }
+
+    protected boolean useBulk() {
+        return this.model.get("bulk", false) && target.supportsBulk();
+    }
+
+    protected <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> boolean canBulk(A adapter) {
+        if (adapter.skip) {
+            return false;
+        }
+        // PATCH payloads and mapping to existing resources keep going through the single-resource path
+        if (adapter instanceof GroupAdapter) {
+            return !this.model.get("group-patchOp", false) && !this.model.get("map-existing-groups", false);
+        }
+        return !this.model.get("user-patchOp", false) && !this.model.get("map-existing-users", false);
+    }
 
+    /**
+     * Same as {@link #refreshResources(Class, SynchronizationResult)}, but creates and
+     * replaces are grouped into /Bulk requests. Results are mapped back to the local
+     * resource through the bulkId, which is the local id.
+     */
+    protected <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void refreshResourcesBulk(
+            Class<A> aClass, SynchronizationResult syncRes, int position) {
+        LOGGER.infof("Refreshing %s using bulk requests", aClass.getSimpleName());
+        inChunks(getAdapter(aClass).getResourceIdStream(position), syncRes, (client, ids) -> {
+            var adapter = client.getAdapter(aClass);
+            client.refreshBulk(aClass, ids.stream().map(adapter::getResourceById).filter(Objects::nonNull), syncRes);
+        }, refreshCheckpoint(position));
     }
 
+    /**
+     * Sends the creates and replaces of the given resources in /Bulk requests.
+     */
+    protected <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void refreshBulk(
+            Class<A> aClass, Stream<M> resources, SynchronizationResult syncRes) {
+        var batch = new ScimBulkBatch<M>(this, target.getBulkMaxOperations(),
+                target.getBulkMaxPayloadSize(), (operation, result) -> {
+                    var resource = operation.getContext();
+                    var adapter = getAdapter(aClass);
+                    adapter.apply(resource);
+                    String resourceInfo = getResourceInfo(adapter);
+                    var status = result == null ? null : result.getStatus();
+                    if (status != null && status >= 200 && status < 300) {
+                        if (operation.getMethod() == HttpMethod.POST) {
+                            var externalId = result.getResourceId().orElseGet(() -> {
+                                var location = result.getLocation().orElse("");
+                                return location.substring(location.lastIndexOf('/') + 1);
+                            });
+                            adapter.setExternalId(externalId);
+                            adapter.setContentHash(adapter.getFingerprint());
+                            adapter.saveMapping();
+                            trackAdded(syncRes, adapter, resourceInfo);
+                        } else {
+                            var mapping = adapter.getMapping();
+                            if (mapping != null) {
+                                mapping.setContentHash(adapter.getFingerprint());
+                            }
+                            trackUpdated(syncRes, adapter, resourceInfo);
+                        }
+                    } else if (operation.getMethod() == HttpMethod.POST && (status == null || status >= 500)) {
+                        // The server may have created it anyway, so look it up instead of creating it
+                        // again; when it can't be found it is left unmapped for the next sync
+                        if (tryMapToExisting(aClass, resource)) {
+                            trackMapped(syncRes, adapter, resourceInfo);
+                        } else {
+                            trackFailed(syncRes, adapter, resourceInfo + " (bulk create failed, status " + status + ")");
+                        }
+                    } else {
+                        // Let the single-resource path retry and handle 404/405 fallbacks
+                        LOGGER.infof("Bulk %s failed for %s (status %s), retrying individually",
+                                operation.getMethod(), resourceInfo, status);
+                        refreshResource(aClass, resource, syncRes);
+                    }
+                });
+        var force = this.model.get("sync-force-replace", false);
+        resources.forEach(resource -> {
+            var adapter = getAdapter(aClass);
+            adapter.apply(resource);
+            if (adapter.skipRefresh()) {
+                LOGGER.infof("Skipping refresh for %s", getResourceInfo(adapter));
+                return;
+            }
+            if (!canBulk(adapter)) {
+                refreshResource(aClass, resource, syncRes);
+                return;
+            }
+            var mapping = adapter.getMapping();
+            if (mapping == null) {
+                batch.add(adapter.getId(), HttpMethod.POST, "/" + adapter.getSCIMEndpoint(), adapter.toSCIM(false),
+                        resource);
+            } else {
+                adapter.apply(mapping);
+                if (!force && adapter.getFingerprint().equals(mapping.getContentHash())) {
+                    LOGGER.debugf("Remote resource for %s is up to date", adapter.getId());
+                    return;
+                }
+                batch.add(adapter.getId(), HttpMethod.PUT,
+                        "/" + adapter.getSCIMEndpoint() + "/" + adapter.getExternalId(), adapter.toSCIM(false),
+                        resource);
+            }
+        });
+        batch.flush();
+    }
+
+    /**
+     * Imports the remote resources. When incremental import is enabled and the
+     * target supports filtering, only resources modified since the last import
+     * (by the target's own meta.lastModified) are listed; a full listing still
+     * runs periodically to reconcile whatever the filter can't see. A full import
+     * interrupted during a sync resumes at the page it stopped at.
+     */
     public <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void importResources(
             Class<A> aClass, SynchronizationResult syncRes) {
         LOGGER.info("Import");
         LOGGER.debugf("Importing resources for %s", aClass.getSimpleName());
+        var adapter = getAdapter(aClass);
+        var state = loadSyncState(adapter.getType());
+        var now = Time.currentTimeMillis();
+        var fullInterval = TimeUnit.HOURS.toMillis(this.model.get("sync-import-full-interval", 24));
+        var incremental = this.model.get("sync-import-incremental", false) && target.supportsFiltering()
+                && state.getImportWatermark() != null && state.getLastFullImport() != null
+                && now - state.getLastFullImport() < fullInterval;
+        var startIndex = checkpoint == null ? 1 : checkpoint.getCursor(ScimSyncCheckpoint.PHASE_IMPORT, 1);
+        if (startIndex > 1) {
+            LOGGER.infof("Resuming import of %s at index %d", aClass.getSimpleName(), startIndex);
+            incremental = false;
+        }
+        Instant watermark = null;
+        if (incremental) {
+            // ge rather than gt: resources modified within the same instant must not be missed
+            var filter = "meta.lastModified ge \"%s\"".formatted(state.getImportWatermark());
+            try {
+                watermark = importPages(aClass, filter, syncRes, 1);
+            } catch (RuntimeException e) {
+                LOGGER.warnf("Incremental import of %s failed (%s), falling back to a full import",
+                        aClass.getSimpleName(), e.getMessage());
+                incremental = false;
+            }
+        }
+        if (!incremental) {
+            watermark = importPages(aClass, null, syncRes, startIndex);
+            state.setLastFullImport(now);
+        }
+        if (watermark != null) {
+            var previous = parseTimestamp(state.getImportWatermark());
+            if (previous == null || watermark.isAfter(previous)) {
+                state.setImportWatermark(watermark.toString());
+            }
+        }
+        saveSyncState(state);
+    }
+
+    /**
+     * Imports every remote resource matching the filter, from startIndex on, and
+     * returns the latest meta.lastModified seen, or null if the target doesn't
+     * report it. Full imports save the sync checkpoint after each page.
+     * Mappings and local resources are resolved in bulk, see
+     * {@link ScimImportSnapshot}.
+     */
+    protected <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> Instant importPages(
+            Class<A> aClass, String filter, SynchronizationResult syncRes, long startIndex) {
+        var adapter = getAdapter(aClass);
+        var pages = listResources(adapter.getSCIMEndpoint(), adapter.getResourceClass(), filter)
+                .startAt(startIndex);
+        ScimImportSnapshot<S> snapshot = filter == null ? ScimImportSnapshot.load(adapter) : ScimImportSnapshot.lazy();
+        var chunkSize = getChunkSize();
+        Instant watermark = null;
+        while (pages.hasNext()) {
+            var page = pages.next();
+            LOGGER.debugf("Importing page of %d resources (total %d)", page.size(), pages.getTotalResults());
+            for (var resource : page) {
+                var lastModified = parseTimestamp(resource.path("meta").path("lastModified").asText(null));
+                if (lastModified != null && (watermark == null || lastModified.isAfter(watermark))) {
+                    watermark = lastModified;
+                }
+            }
+            for (int i = 0; i < page.size(); i += chunkSize) {
+                runChunk(page.subList(i, Math.min(page.size(), i + chunkSize)), syncRes,
+                        (client, resources) -> {
+                            snapshot.prepare(client.getAdapter(aClass), resources);
+                            resources.forEach(r -> client.importResource(aClass, r, snapshot, syncRes));
+                        });
+            }
+            if (checkpoint != null && filter == null) {
+                checkpoint.save(ScimSyncCheckpoint.PHASE_IMPORT, pages.getStartIndex());
+            }
+        }
+        return watermark;
+    }
+
+    protected <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void importResource(
+            Class<A> aClass, S resource, ScimImportSnapshot<S> snapshot, SynchronizationResult syncRes) {
+        A adapter = null;
         try {
-            var adapter = getAdapter(aClass);
-            ServerResponse<ListResponse<S>> response  = scimRequestBuilder.list(scimApplicationBaseUrl + "/" + adapter.getSCIMEndpoint(), adapter.getResourceClass()).get().sendRequest();
-            ListResponse<S> resourceTypeListResponse = response.getResource();
+            LOGGER.infof("Reconciling remote resource %s", resource);
+            adapter = getAdapter(aClass);
+            adapter.apply(resource);
 
-            for (var resource : resourceTypeListResponse.getListedResources()) {
-                try {
-                    LOGGER.infof("Reconciling remote resource %s", resource);
-                    adapter = getAdapter(aClass);
-                    adapter.apply(resource);
+            String resourceInfo = getResourceInfo(adapter);
+            LOGGER.infof("Processing remote resource: %s", resourceInfo);
 
-                    String resourceInfo = getResourceInfo(adapter);
-                    LOGGER.infof("Processing remote resource: %s", resourceInfo);
-
-                    var mapping = adapter.getMapping();
-                    if (mapping != null) {
-                        adapter.apply(mapping);
-                        if (adapter.entityExists()) {
-                            LOGGER.infof("Valid mapping found for %s, skipping", resourceInfo);
-                            continue;
-                        } else {
-                            LOGGER.infof("Deleting dangling mapping for %s", resourceInfo);
-                            adapter.deleteMapping();
-                        }
-                    }
+            var externalId = adapter.getExternalId();
+            var mappedId = snapshot.getMappedId(externalId);
+            if (mappedId != null) {
+                if (snapshot.exists(mappedId)) {
+                    LOGGER.infof("Valid mapping found for %s, skipping", resourceInfo);
+                    return;
+                } else {
+                    LOGGER.infof("Deleting dangling mapping for %s", resourceInfo);
+                    adapter.deleteMapping();
+                    snapshot.unmapped(externalId);
+                }
+            }
 
-                    var mapped = adapter.tryToMap();
-                    if (mapped) {
-                        LOGGER.infof("Matched local resource for %s", resourceInfo);
-                        adapter.saveMapping();
-                    } else {
-                        switch (this.model.get("sync-import-action")) {
-                            case "CREATE_LOCAL":
-                                LOGGER.infof("Creating local resource for %s", resourceInfo);
-                                try {
-                                    adapter.createEntity();
-                                    adapter.saveMapping();
-                                    trackAdded(syncRes, adapter, resourceInfo);
-                                } catch (Exception e) {
-                                    LOGGER.errorf("Failed to create local resource for %s: %s", resourceInfo, e.getMessage());
-                                    trackFailed(syncRes, adapter, resourceInfo + " (create failed: " + e.getMessage() + ")");
-                                }
-                                break;
-                            case "DELETE_REMOTE":
-                                LOGGER.infof("Deleting remote resource for %s", resourceInfo);
-                                try {
-                                    scimRequestBuilder
-                                        .delete(genScimUrl(adapter.getSCIMEndpoint(),
-                                                           resource.getId().get()),
-                                                           adapter.getResourceClass())
-                                        .sendRequest();
-                                    trackRemoved(syncRes, adapter, resourceInfo);
-                                } catch (Exception e) {
-                                    LOGGER.errorf("Failed to delete remote resource for %s: %s", resourceInfo, e.getMessage());
-                                    trackFailed(syncRes, adapter, resourceInfo + " (delete failed: " + e.getMessage() + ")");
-                                }
-                                break;
+            var match = snapshot.getMatch(externalId);
+            if (match != null && snapshot.isTaken(match)) {
+                LOGGER.warnf("Local resource %s matching %s is already mapped to another remote resource, skipping",
+                        match, resourceInfo);
+                return;
+            }
+            if (match != null) {
+                LOGGER.infof("Matched local resource for %s", resourceInfo);
+                adapter.setId(match);
+                adapter.saveMapping();
+                snapshot.mapped(externalId, match);
+            } else {
+                switch (this.model.get("sync-import-action")) {
+                    case "CREATE_LOCAL":
+                        LOGGER.infof("Creating local resource for %s", resourceInfo);
+                        try {
+                            adapter.createEntity();
+                            adapter.saveMapping();
+                            snapshot.mapped(externalId, adapter.getId());
+                            trackAdded(syncRes, adapter, resourceInfo);
+                        } catch (Exception e) {
+                            LOGGER.errorf("Failed to create local resource for %s: %s", resourceInfo, e.getMessage());
+                            trackFailed(syncRes, adapter, resourceInfo + " (create failed: " + e.getMessage() + ")");
                         }
-                    }
-                } catch (Exception e) {
-                    String resourceInfo = adapter != null ? getResourceInfo(adapter) : "unknown";
-                    LOGGER.errorf("Failed to process resource %s: %s", resourceInfo, e.getMessage());
-                    e.printStackTrace();
-                    trackFailed(syncRes, adapter, resourceInfo + " (processing failed: " + e.getMessage() + ")");
+                        break;
+                    case "DELETE_REMOTE":
+                        LOGGER.infof("Deleting remote resource for %s", resourceInfo);
+                        try {
+                            var remoteId = resource.getId().get();
+                            send(adapter.getType(), "delete", () -> scimRequestBuilder
+                                .delete(genScimUrl(adapter.getSCIMEndpoint(), remoteId),
+                                                   adapter.getResourceClass())
+                                .sendRequest());
+                            trackRemoved(syncRes, adapter, resourceInfo);
+                        } catch (Exception e) {
+                            LOGGER.errorf("Failed to delete remote resource for %s: %s", resourceInfo, e.getMessage());
+                            trackFailed(syncRes, adapter, resourceInfo + " (delete failed: " + e.getMessage() + ")");
+                        }
+                        break;
                 }
             }
-        } catch (ResponseException e) {
-            throw new RuntimeException(e);
+        } catch (Exception e) {
+            String resourceInfo = adapter != null ? getResourceInfo(adapter) : "unknown";
+            LOGGER.errorf("Failed to process resource %s: %s", resourceInfo, e.getMessage());
+            e.printStackTrace();
+            trackFailed(syncRes, adapter, resourceInfo + " (processing failed: " + e.getMessage() + ")");
+        }
+    }
+
+    protected static Instant parseTimestamp(String value) {
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        try {
+            return OffsetDateTime.parse(value).toInstant();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the sync state in its own transaction, so it can be saved at any time
+     * with {@link #saveSyncState(ScimSyncState)}. Returns a new state if none was
+     * saved yet. The state is read once per client.
+     */
+    protected ScimSyncState loadSyncState(String type) {
+        return syncStates.computeIfAbsent(type, this::readSyncState);
+    }
+
+    protected ScimSyncState readSyncState(String type) {
+        var realmId = getRealmId();
+        return KeycloakModelUtils.runJobInTransactionWithResult(session.getKeycloakSessionFactory(), stateSession -> {
+            var em = stateSession.getProvider(JpaConnectionProvider.class).getEntityManager();
+            var state = em.find(ScimSyncState.class, new ScimSyncStateId(model.getId(), type));
+            if (state == null) {
+                state = new ScimSyncState();
+                state.setComponentId(model.getId());
+                state.setType(type);
+                state.setRealmId(realmId);
+            }
+            return state;
+        });
+    }
+
+    protected void saveSyncState(ScimSyncState state) {
+        KeycloakModelUtils.runJobInTransaction(session.getKeycloakSessionFactory(), stateSession -> stateSession
+                .getProvider(JpaConnectionProvider.class).getEntityManager().merge(state));
+    }
+
+    /**
+     * Incremental counterpart of {@link #refreshResources(Class, SynchronizationResult)}:
+     * only reconciles the given resources. Resources that no longer exist locally
+     * are deleted on the target.
+     */
+    public <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void refreshChanged(
+            Class<A> aClass, Collection<String> ids, SynchronizationResult syncRes) {
+        LOGGER.infof("Refreshing %d changed %s", ids.size(), aClass.getSimpleName());
+        inChunks(ids.stream(), syncRes, (client, chunk) -> {
+            for (var id : chunk) {
+                client.refreshChanged(aClass, id, syncRes);
+            }
+        });
+    }
+
+    protected <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void refreshChanged(
+            Class<A> aClass, String id, SynchronizationResult syncRes) {
+        var adapter = getAdapter(aClass);
+        var resource = adapter.getResourceById(id);
+        if (resource != null) {
+            if (adapter.isInSyncScope(resource)) {
+                refreshResource(aClass, resource, syncRes);
+            }
+        } else if (adapter.getExternalId(adapter.getType(), id) != null) {
+            adapter.setId(id);
+            var response = delete(aClass, id);
+            if (response != null && response.isSuccess()) {
+                trackRemoved(syncRes, adapter, "%s(id=%s)".formatted(adapter.getType(), id));
+            }
         }
     }
 
     public <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void sync(Class<A> aClass,
             SynchronizationResult syncRes) {
         LOGGER.debugf("Starting sync for %s", aClass.getSimpleName());
+        checkpoint = ScimSyncCheckpoint.start(this, getAdapter(aClass).getType(), syncRes);
+        try {
+            if (this.model.get("sync-import", false) && !checkpoint.isPast(ScimSyncCheckpoint.PHASE_IMPORT)) {
+                this.importResources(aClass, syncRes);
+            }
+            if (this.model.get("sync-refresh", false)) {
+                this.refreshResources(aClass, syncRes);
+            }
+            checkpoint.finish();
+        } finally {
+            checkpoint = null;
+        }
+        remoteIndexes.clear();
+        LOGGER.debugf("Sync completed for %s", aClass.getSimpleName());
+    }
+
+    /**
+     * Same as {@link #sync(Class, SynchronizationResult)}, but only refreshes the
+     * resources that changed.
+     */
+    public <M extends RoleMapperModel, S extends ResourceNode, A extends Adapter<M, S>> void syncChanged(
+            Class<A> aClass, Collection<String> ids, SynchronizationResult syncRes) {
+        LOGGER.debugf("Starting incremental sync for %s", aClass.getSimpleName());
         if (this.model.get("sync-import", false)) {
             this.importResources(aClass, syncRes);
         }
         if (this.model.get("sync-refresh", false)) {
-            this.refreshResources(aClass, syncRes);
+            this.refreshChanged(aClass, ids, syncRes);
         }
-        LOGGER.debugf("Sync completed for %s", aClass.getSimpleName());
+        remoteIndexes.clear();
+        LOGGER.debugf("Incremental sync completed for %s", aClass.getSimpleName());
     }
 
+    /**
+     * Releases the shared ScimTarget. Its request builder is only closed once the
+     * target was replaced or removed and no client uses it anymore.
+     */
     public void close() {
-        scimRequestBuilder.close();
+        if (!closed) {
+            closed = true;
+            target.release();
+        }
     }
 
     private <M extends RoleMapperModel, A extends Adapter<M, ?>> String getResourceInfo(A adapter) {
@@ -548,72 +1302,82 @@ public class ScimClient {
     }
 
     private <M extends RoleMapperModel, A extends Adapter<M, ?>> void trackAdded(SynchronizationResult syncRes, A adapter, String resourceInfo) {
-        if (syncRes instanceof ScimSynchronizationResult scimResult) {
-            if (adapter instanceof UserAdapter) {
-                scimResult.addAddedUser(resourceInfo);
-            } else if (adapter instanceof GroupAdapter) {
-                scimResult.addAddedGroup(resourceInfo);
+        synchronized (syncRes) {
+            if (syncRes instanceof ScimSynchronizationResult scimResult) {
+                if (adapter instanceof UserAdapter) {
+                    scimResult.addAddedUser(resourceInfo);
+                } else if (adapter instanceof GroupAdapter) {
+                    scimResult.addAddedGroup(resourceInfo);
+                } else {
+                    syncRes.increaseAdded();
+                }
             } else {
                 syncRes.increaseAdded();
             }
-        } else {
-            syncRes.increaseAdded();
         }
     }
 
     private <M extends RoleMapperModel, A extends Adapter<M, ?>> void trackUpdated(SynchronizationResult syncRes, A adapter, String resourceInfo) {
-        if (syncRes instanceof ScimSynchronizationResult scimResult) {
-            if (adapter instanceof UserAdapter) {
-                scimResult.addUpdatedUser(resourceInfo);
-            } else if (adapter instanceof GroupAdapter) {
-                scimResult.addUpdatedGroup(resourceInfo);
+        synchronized (syncRes) {
+            if (syncRes instanceof ScimSynchronizationResult scimResult) {
+                if (adapter instanceof UserAdapter) {
+                    scimResult.addUpdatedUser(resourceInfo);
+                } else if (adapter instanceof GroupAdapter) {
+                    scimResult.addUpdatedGroup(resourceInfo);
+                } else {
+                    syncRes.increaseUpdated();
+                }
             } else {
                 syncRes.increaseUpdated();
             }
-        } else {
-            syncRes.increaseUpdated();
         }
     }
 
     private <M extends RoleMapperModel, A extends Adapter<M, ?>> void trackRemoved(SynchronizationResult syncRes, A adapter, String resourceInfo) {
-        if (syncRes instanceof ScimSynchronizationResult scimResult) {
-            if (adapter instanceof UserAdapter) {
-                scimResult.addRemovedUser(resourceInfo);
-            } else if (adapter instanceof GroupAdapter) {
-                scimResult.addRemovedGroup(resourceInfo);
+        synchronized (syncRes) {
+            if (syncRes instanceof ScimSynchronizationResult scimResult) {
+                if (adapter instanceof UserAdapter) {
+                    scimResult.addRemovedUser(resourceInfo);
+                } else if (adapter instanceof GroupAdapter) {
+                    scimResult.addRemovedGroup(resourceInfo);
+                } else {
+                    syncRes.increaseRemoved();
+                }
             } else {
                 syncRes.increaseRemoved();
             }
-        } else {
-            syncRes.increaseRemoved();
         }
     }
 
     private <M extends RoleMapperModel, A extends Adapter<M, ?>> void trackMapped(SynchronizationResult syncRes, A adapter, String resourceInfo) {
-        if (syncRes instanceof ScimSynchronizationResult scimResult) {
-            if (adapter instanceof UserAdapter) {
-                scimResult.addMappedUser(resourceInfo);
-            } else if (adapter instanceof GroupAdapter) {
-                scimResult.addMappedGroup(resourceInfo);
+        synchronized (syncRes) {
+            if (syncRes instanceof ScimSynchronizationResult scimResult) {
+                if (adapter instanceof UserAdapter) {
+                    scimResult.addMappedUser(resourceInfo);
+                } else if (adapter instanceof GroupAdapter) {
+                    scimResult.addMappedGroup(resourceInfo);
+                } else {
+                    syncRes.increaseUpdated();
+                }
             } else {
                 syncRes.increaseUpdated();
             }
-        } else {
-            syncRes.increaseUpdated();
         }
     }
 
     private <M extends RoleMapperModel, A extends Adapter<M, ?>> void trackFailed(SynchronizationResult syncRes, A adapter, String resourceInfo) {
-        if (syncRes instanceof ScimSynchronizationResult scimResult) {
-            if (adapter instanceof UserAdapter) {
-                scimResult.addFailedUser(resourceInfo);
-            } else if (adapter instanceof GroupAdapter) {
-                scimResult.addFailedGroup(resourceInfo);
+        synchronized (syncRes) {
+            if (syncRes instanceof ScimSynchronizationResult scimResult) {
+                if (adapter instanceof UserAdapter) {
+                    scimResult.addFailedUser(resourceInfo);
+                } else if (adapter instanceof GroupAdapter) {
+                    scimResult.addFailedGroup(resourceInfo);
+                } else {
+                    syncRes.increaseFailed();
+                }
             } else {
                 syncRes.increaseFailed();
             }
-        } else {
-            syncRes.increaseFailed();
         }
     }
 
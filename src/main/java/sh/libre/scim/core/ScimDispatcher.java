@@ -1,6 +1,8 @@
 package sh.libre.scim.core;
 
 import java.util.function.Consumer;
+import java.util.stream.Stream;
+
 import org.jboss.logging.Logger;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.models.KeycloakSession;
@@ -18,13 +20,88 @@ public class ScimDispatcher {
         this.session = session;
     }
 
-    public void run(String scope, Consumer<ScimClient> f) {
-        session.getContext().getRealm().getComponentsStream()
+    protected Stream<ComponentModel> getComponents(String scope) {
+        return session.getContext().getRealm().getComponentsStream()
                 .filter(m -> {
                     return ScimStorageProviderFactory.ID.equals(m.getProviderId()) && m.get("enabled", true)
                             && m.get("propagation-" + scope, false);
-                })
-                .forEach(m -> runOne(m, f));
+                });
+    }
+
+    public void run(String scope, Consumer<ScimClient> f) {
+        getComponents(scope).forEach(m -> runOne(m, f));
+    }
+
+    public void dispatch(String scope, ScimOperation.Type type, String resourceType, String id) {
+        dispatch(scope, type, resourceType, id, null);
+    }
+
+    public void dispatch(String scope, ScimOperation.Type type, String resourceType, String id, String memberId) {
+        var realmId = session.getContext().getRealm().getId();
+        getComponents(scope).forEach(m -> {
+            if (!isInScope(m, type, resourceType, id)) {
+                LOGGER.debugf("Group %s is not selected by the group filter of %s, ignoring", id, m.getName());
+                return;
+            }
+            var operation = new ScimOperation(realmId, m.getId(), resourceType, id, type, memberId);
+            var executor = ScimPropagationExecutor.getInstance();
+            // Fan-outs over group members are always sent in the background
+            var async = m.get("propagation-async", false) || type == ScimOperation.Type.REPLACE_MEMBERS;
+            ScimMetrics.dispatched(m, resourceType, type, async && executor != null);
+            if (async && executor != null) {
+                LOGGER.debugf("Queueing %s", operation);
+                executor.enqueue(session, operation);
+            } else {
+                // Without the executor nothing retries later, so retry right away
+                var failure = runOperation(m, operation, executor == null);
+                if (failure != null && executor != null) {
+                    LOGGER.infof("Failed to propagate %s (%s), retrying in the background", operation,
+                            failure.getMessage());
+                    executor.defer(session, operation, failure);
+                } else if (failure != null) {
+                    LOGGER.errorf("Failed to propagate %s, it is sent again by the next sync: %s", operation,
+                            failure.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Group changes only reach components whose group filter selects the group.
+     * Deletes always go through so mappings made before the filter changed are
+     * cleaned up, and member fan-outs are about the users, not the group.
+     */
+    protected boolean isInScope(ComponentModel m, ScimOperation.Type type, String resourceType, String id) {
+        if (!ScimOperation.TYPE_GROUP.equals(resourceType) || type == ScimOperation.Type.DELETE
+                || type == ScimOperation.Type.REPLACE_MEMBERS) {
+            return true;
+        }
+        return ScimGroupFilter.get(session, m).isGroupInScope(id);
+    }
+
+    /**
+     * Sends the operation, retrying on this thread only when inlineRetry is set.
+     * Returns why it failed when it is worth retrying later, null otherwise.
+     */
+    protected Exception runOperation(ComponentModel m, ScimOperation operation, boolean inlineRetry) {
+        var client = new ScimClient(m, session);
+        if (!inlineRetry) {
+            client.withoutInlineRetry();
+        }
+        try {
+            var response = operation.execute(client);
+            if (response != null && ScimPropagationExecutor.isRetryable(response.getHttpStatus())) {
+                return new RuntimeException("SCIM server answered HTTP " + response.getHttpStatus());
+            }
+            return null;
+        } catch (ScimThrottledException e) {
+            return e;
+        } catch (Exception e) {
+            LOGGER.error(e);
+            return e;
+        } finally {
+            client.close();
+        }
     }
 
     public void runOne(ComponentModel m, Consumer<ScimClient> f) {
@@ -0,0 +1,345 @@
+package sh.libre.scim.core;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jakarta.persistence.EntityManager;
+
+import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.common.util.Time;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import sh.libre.scim.jpa.ScimSyncShard;
+import sh.libre.scim.jpa.ScimSyncShardId;
+import sh.libre.scim.storage.ScimSynchronizationResult;
+
+/**
+ * Spreads the user refresh of a full sync over the cluster. The node running the
+ * sync splits the realm's users into shards of consecutive pages, records them in
+ * SCIM_SYNC_SHARD and notifies the other nodes. Every node then claims pending
+ * shards with a lease and reconciles them, a chunk per transaction, with as
+ * many workers as the sync concurrency. Leases are renewed after each chunk;
+ * shards whose lease expired, because their node stopped, are claimed again
+ * and the work of the previous owner is no longer recorded. The coordinating node works on shards
+ * too, waits for all of them and adds their counters to the sync result.
+ */
+public class ScimDistributedSync {
+    final private static Logger LOGGER = Logger.getLogger(ScimDistributedSync.class);
+    final public static String SHARDS_EVENT = "scim-sync-shards";
+    final private static long LEASE_TIME = TimeUnit.MINUTES.toMillis(15);
+    final private static long WAIT_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+    final private static int CLAIM_BATCH_SIZE = 20;
+    final private static String NODE = ManagementFactory.getRuntimeMXBean().getName();
+    private static ExecutorService workers;
+
+    public static class ShardsEvent implements ClusterEvent {
+        final private String realmId;
+        final private String componentId;
+        final private String runId;
+
+        public ShardsEvent(String realmId, String componentId, String runId) {
+            this.realmId = realmId;
+            this.componentId = componentId;
+            this.runId = runId;
+        }
+
+        public String getRealmId() {
+            return realmId;
+        }
+
+        public String getComponentId() {
+            return componentId;
+        }
+
+        public String getRunId() {
+            return runId;
+        }
+    }
+
+    protected static EntityManager getEM(KeycloakSession session) {
+        return session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+
+    /**
+     * Refreshes every user of the component across the cluster and returns once
+     * all shards are done. When resuming an interrupted sync, the run it left
+     * behind is carried on: its completed shards aren't refreshed again.
+     */
+    public static void refreshUsers(KeycloakSession session, ComponentModel model, SynchronizationResult syncRes,
+            boolean resume) {
+        var sessionFactory = session.getKeycloakSessionFactory();
+        var realmId = session.getContext().getRealm().getId();
+        var runId = resume ? findRun(sessionFactory, model.getId()) : null;
+        if (runId != null) {
+            LOGGER.infof("Resuming refresh of users of %s (run %s)", model.getName(), runId);
+        } else {
+            runId = KeycloakModelUtils.generateId();
+            var shardSize = Math.max(1, model.get("sync-shard-size", 1000));
+            var userCount = session.users().getUsersCount(session.getContext().getRealm());
+            var shards = createShards(sessionFactory, realmId, model.getId(), runId, userCount, shardSize);
+            LOGGER.infof("Refreshing %d users of %s in %d shards", userCount, model.getName(), shards);
+        }
+
+        var cluster = session.getProvider(ClusterProvider.class);
+        if (cluster != null) {
+            cluster.notify(SHARDS_EVENT, new ShardsEvent(realmId, model.getId(), runId), true,
+                    ClusterProvider.DCNotify.ALL_DCS);
+        }
+        startWorkers(sessionFactory, realmId, model.getId(), runId, model.get("sync-concurrency", 1) - 1);
+        await(sessionFactory, realmId, model.getId(), runId, syncRes);
+    }
+
+    protected static String findRun(KeycloakSessionFactory sessionFactory, String componentId) {
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> getEM(session)
+                .createNamedQuery("findSyncShardRuns", String.class)
+                .setParameter("componentId", componentId)
+                .getResultStream()
+                .findFirst()
+                .orElse(null));
+    }
+
+    protected static int createShards(KeycloakSessionFactory sessionFactory, String realmId, String componentId,
+            String runId, int userCount, int shardSize) {
+        var shards = Math.max(1, (userCount + shardSize - 1) / shardSize);
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            var em = getEM(session);
+            // Runs left over by a coordinator that stopped are superseded by this one,
+            // except shards still being worked on, which complete into nothing
+            em.createNamedQuery("deleteSyncShardsOfComponent")
+                    .setParameter("componentId", componentId)
+                    .setParameter("now", Time.currentTimeMillis())
+                    .executeUpdate();
+            for (int i = 0; i < shards; i++) {
+                var shard = new ScimSyncShard();
+                shard.setRunId(runId);
+                shard.setShard(i);
+                shard.setRealmId(realmId);
+                shard.setComponentId(componentId);
+                shard.setStatus(ScimSyncShard.STATUS_PENDING);
+                shard.setFirstResult(i * shardSize);
+                shard.setMaxResults(shardSize);
+                em.persist(shard);
+            }
+        });
+        return shards;
+    }
+
+    /**
+     * Works on the run's shards on this thread until none can be claimed, then
+     * waits for the shards leased by other nodes and collects their counters.
+     */
+    protected static void await(KeycloakSessionFactory sessionFactory, String realmId, String componentId,
+            String runId, SynchronizationResult syncRes) {
+        while (true) {
+            work(sessionFactory, realmId, componentId, runId);
+            var done = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                var shards = getEM(session).createNamedQuery("findSyncShards", ScimSyncShard.class)
+                        .setParameter("runId", runId)
+                        .getResultList();
+                if (shards.isEmpty() || shards.stream().anyMatch(s -> !ScimSyncShard.STATUS_DONE.equals(s.getStatus()))) {
+                    // Empty when a newer run superseded this one
+                    return shards.isEmpty();
+                }
+                for (var shard : shards) {
+                    addCounts(syncRes, shard.getAdded(), shard.getUpdated(), shard.getRemoved(), shard.getFailed());
+                }
+                getEM(session).createNamedQuery("deleteSyncShards")
+                        .setParameter("runId", runId)
+                        .executeUpdate();
+                return true;
+            });
+            if (done) {
+                return;
+            }
+            try {
+                Thread.sleep(WAIT_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOGGER.warnf("Interrupted while waiting for sync shards of run %s", runId);
+                return;
+            }
+        }
+    }
+
+    protected static void addCounts(SynchronizationResult syncRes, int added, int updated, int removed,
+            int failed) {
+        synchronized (syncRes) {
+            if (syncRes instanceof ScimSynchronizationResult scimResult) {
+                scimResult.addCounts(added, updated, removed, failed);
+            } else {
+                syncRes.setAdded(syncRes.getAdded() + added);
+                syncRes.setUpdated(syncRes.getUpdated() + updated);
+                syncRes.setRemoved(syncRes.getRemoved() + removed);
+                syncRes.setFailed(syncRes.getFailed() + failed);
+            }
+        }
+    }
+
+    protected static void startWorkers(KeycloakSessionFactory sessionFactory, String realmId, String componentId,
+            String runId, int count) {
+        var pool = getWorkers();
+        for (int i = 0; i < count; i++) {
+            pool.execute(() -> {
+                try {
+                    work(sessionFactory, realmId, componentId, runId);
+                } catch (Exception e) {
+                    LOGGER.errorf(e, "SCIM sync worker of run %s failed", runId);
+                }
+            });
+        }
+    }
+
+    /**
+     * Claims and reconciles shards of the run until none is left to claim.
+     */
+    protected static void work(KeycloakSessionFactory sessionFactory, String realmId, String componentId,
+            String runId) {
+        ScimSyncShard shard;
+        while ((shard = claim(sessionFactory, runId)) != null) {
+            var result = new SynchronizationResult();
+            var first = shard.getFirstResult();
+            var max = shard.getMaxResults();
+            LOGGER.debugf("Refreshing shard %d of run %s (users %d to %d)", shard.getShard(), runId, first,
+                    first + max - 1);
+            var owned = true;
+            try {
+                // One transaction per chunk of the shard
+                var offset = first;
+                while (offset < first + max && (owned = renew(sessionFactory, shard))) {
+                    var chunkFirst = offset;
+                    offset += KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                        var realm = session.realms().getRealm(realmId);
+                        var component = realm == null ? null : realm.getComponent(componentId);
+                        if (component == null) {
+                            return max;
+                        }
+                        session.getContext().setRealm(realm);
+                        var client = new ScimClient(component, session);
+                        try {
+                            var chunkSize = Math.min(client.getChunkSize(), first + max - chunkFirst);
+                            var count = client.refreshUserRange(chunkFirst, chunkSize, result);
+                            // Past the last user of the realm
+                            return count < chunkSize ? max : chunkSize;
+                        } finally {
+                            client.close();
+                        }
+                    });
+                }
+            } catch (Exception e) {
+                LOGGER.errorf(e, "Failed to refresh shard %d of run %s", shard.getShard(), runId);
+                result.increaseFailed();
+            }
+            if (owned) {
+                complete(sessionFactory, shard, result);
+            } else {
+                LOGGER.warnf("Lost the lease of shard %d of run %s, leaving it to its new owner", shard.getShard(),
+                        runId);
+            }
+        }
+    }
+
+    /**
+     * Extends the lease of a shard this worker holds. Returns false when the
+     * lease was lost, i.e. the shard was claimed again by another worker.
+     */
+    protected static boolean renew(KeycloakSessionFactory sessionFactory, ScimSyncShard shard) {
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> getEM(session)
+                .createNamedQuery("renewSyncShard")
+                .setParameter("runId", shard.getRunId())
+                .setParameter("shard", shard.getShard())
+                .setParameter("owner", shard.getOwner())
+                .setParameter("leaseUntil", Time.currentTimeMillis() + LEASE_TIME)
+                .executeUpdate() == 1);
+    }
+
+    protected static ScimSyncShard claim(KeycloakSessionFactory sessionFactory, String runId) {
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            var em = getEM(session);
+            var now = Time.currentTimeMillis();
+            var candidates = em.createNamedQuery("findClaimableSyncShards", ScimSyncShard.class)
+                    .setParameter("runId", runId)
+                    .setParameter("now", now)
+                    .setMaxResults(CLAIM_BATCH_SIZE)
+                    .getResultList();
+            // Unique per claim, so a worker can tell when its shard was claimed again
+            var owner = NODE + "/" + KeycloakModelUtils.generateId();
+            for (var candidate : candidates) {
+                var claimed = em.createNamedQuery("claimSyncShard")
+                        .setParameter("runId", runId)
+                        .setParameter("shard", candidate.getShard())
+                        .setParameter("owner", owner)
+                        .setParameter("now", now)
+                        .setParameter("leaseUntil", now + LEASE_TIME)
+                        .executeUpdate() == 1;
+                if (claimed) {
+                    em.detach(candidate);
+                    candidate.setOwner(owner);
+                    return candidate;
+                }
+            }
+            return null;
+        });
+    }
+
+    protected static void complete(KeycloakSessionFactory sessionFactory, ScimSyncShard claimed,
+            SynchronizationResult result) {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            var shard = getEM(session).find(ScimSyncShard.class,
+                    new ScimSyncShardId(claimed.getRunId(), claimed.getShard()));
+            // Gone with a superseded run, or claimed again after the lease expired
+            if (shard == null || !ScimSyncShard.STATUS_RUNNING.equals(shard.getStatus())
+                    || !claimed.getOwner().equals(shard.getOwner())) {
+                return;
+            }
+            shard.setStatus(ScimSyncShard.STATUS_DONE);
+            shard.setAdded(result.getAdded());
+            shard.setUpdated(result.getUpdated());
+            shard.setRemoved(result.getRemoved());
+            shard.setFailed(result.getFailed());
+        });
+    }
+
+    protected static synchronized ExecutorService getWorkers() {
+        if (workers == null) {
+            var threadCount = new AtomicInteger();
+            workers = Executors.newCachedThreadPool(r -> {
+                var thread = new Thread(r, "scim-sync-shard-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return workers;
+    }
+
+    public static synchronized void shutdown() {
+        if (workers != null) {
+            workers.shutdownNow();
+            workers = null;
+        }
+    }
+
+    public static void registerClusterListener(KeycloakSessionFactory sessionFactory, ClusterProvider cluster) {
+        cluster.registerListener(SHARDS_EVENT, event -> {
+            if (event instanceof ShardsEvent shards) {
+                var concurrency = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                    var realm = session.realms().getRealm(shards.getRealmId());
+                    var component = realm == null ? null : realm.getComponent(shards.getComponentId());
+                    return component == null ? 0 : component.get("sync-concurrency", 1);
+                });
+                LOGGER.debugf("Joining SCIM sync run %s with %d workers", shards.getRunId(), concurrency);
+                startWorkers(sessionFactory, shards.getRealmId(), shards.getComponentId(), shards.getRunId(),
+                        concurrency);
+            }
+        });
+    }
+}
@@ -0,0 +1,175 @@
+package sh.libre.scim.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.common.util.Time;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * The compiled group-filter of a component together with the ids of every
+ * group it selects, subgroups of matching groups included. Filters are built
+ * once from a single pass over the realm groups and shared until the filter
+ * setting or the realm groups change, so scope checks are set lookups.
+ */
+public class ScimGroupFilter {
+    final private static Logger LOGGER = Logger.getLogger(ScimGroupFilter.class);
+    final public static String INVALIDATION_EVENT = "scim-group-filter-invalidation";
+    // Safety net for group changes made without an admin event (e.g. user federation)
+    final private static long TTL = TimeUnit.MINUTES.toMillis(10);
+    final private static Map<String, ScimGroupFilter> filters = new ConcurrentHashMap<>();
+
+    public static class InvalidationEvent implements ClusterEvent {
+        final private String realmId;
+
+        public InvalidationEvent(String realmId) {
+            this.realmId = realmId;
+        }
+
+        public String getRealmId() {
+            return realmId;
+        }
+    }
+
+    final private String realmId;
+    final private String filter;
+    final private Set<String> groupIds;
+    final private long builtAt;
+
+    protected ScimGroupFilter(String realmId, String filter, Set<String> groupIds) {
+        this.realmId = realmId;
+        this.filter = filter;
+        this.groupIds = groupIds;
+        this.builtAt = Time.currentTimeMillis();
+    }
+
+    public static ScimGroupFilter get(KeycloakSession session, ComponentModel model) {
+        var realm = session.getContext().getRealm();
+        var filter = model.get("group-filter");
+        var cached = filters.get(model.getId());
+        if (cached != null && cached.realmId.equals(realm.getId()) && isSameFilter(cached.filter, filter)
+                && Time.currentTimeMillis() - cached.builtAt < TTL) {
+            return cached;
+        }
+        var built = build(session, realm, filter);
+        filters.put(model.getId(), built);
+        return built;
+    }
+
+    protected static boolean isSameFilter(String a, String b) {
+        return (a == null ? "" : a.trim()).equals(b == null ? "" : b.trim());
+    }
+
+    protected static ScimGroupFilter build(KeycloakSession session, RealmModel realm, String filter) {
+        if (filter == null || filter.trim().isEmpty()) {
+            return new ScimGroupFilter(realm.getId(), filter, null);
+        }
+        List<Pattern> patterns = new ArrayList<>();
+        for (var p : filter.split(",")) {
+            patterns.add(Pattern.compile(p.trim()));
+        }
+        var start = Time.currentTimeMillis();
+        var children = new HashMap<String, List<String>>();
+        var matching = new ArrayDeque<String>();
+        session.groups().getGroupsStream(realm).forEach(g -> {
+            if (g.getParentId() != null) {
+                children.computeIfAbsent(g.getParentId(), k -> new ArrayList<>()).add(g.getId());
+            }
+            if (patterns.stream().anyMatch(p -> p.matcher(g.getName()).matches())) {
+                matching.add(g.getId());
+            }
+        });
+        var groupIds = new HashSet<String>();
+        while (!matching.isEmpty()) {
+            var id = matching.poll();
+            if (groupIds.add(id)) {
+                matching.addAll(children.getOrDefault(id, List.of()));
+            }
+        }
+        LOGGER.debugf("Group filter '%s' selects %d groups in realm %s (%d ms)", filter, groupIds.size(),
+                realm.getName(), Time.currentTimeMillis() - start);
+        // Sorted, so positions saved while enumerating the groups or their members mean
+        // the same on every node and after a restart
+        return new ScimGroupFilter(realm.getId(), filter, Collections.unmodifiableSortedSet(new TreeSet<>(groupIds)));
+    }
+
+    /**
+     * Whether a filter is set at all. Without one every group and user is in scope.
+     */
+    public boolean isFiltered() {
+        return groupIds != null;
+    }
+
+    /**
+     * Ids of the selected groups, in ascending order, or null when no filter is set.
+     */
+    public Set<String> getGroupIds() {
+        return groupIds;
+    }
+
+    public boolean isGroupInScope(String groupId) {
+        return groupIds == null || groupIds.contains(groupId);
+    }
+
+    public boolean isUserInScope(UserModel user) {
+        return groupIds == null || user.getGroupsStream().anyMatch(g -> groupIds.contains(g.getId()));
+    }
+
+    public static void invalidate(String componentId) {
+        filters.remove(componentId);
+    }
+
+    /**
+     * Drops the filters of the realm on this node and on the other cluster nodes,
+     * after a group was created, renamed, moved or deleted.
+     */
+    public static void invalidateRealm(KeycloakSession session, String realmId) {
+        evictRealm(realmId);
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                // Filters may have been rebuilt from the uncommitted state meanwhile
+                evictRealm(realmId);
+                var cluster = session.getProvider(ClusterProvider.class);
+                if (cluster != null) {
+                    cluster.notify(INVALIDATION_EVENT, new InvalidationEvent(realmId), true,
+                            ClusterProvider.DCNotify.ALL_DCS);
+                }
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                evictRealm(realmId);
+            }
+        });
+    }
+
+    protected static void evictRealm(String realmId) {
+        filters.values().removeIf(f -> f.realmId.equals(realmId));
+    }
+
+    public static void registerClusterListener(ClusterProvider cluster) {
+        cluster.registerListener(INVALIDATION_EVENT, event -> {
+            if (event instanceof InvalidationEvent) {
+                evictRealm(((InvalidationEvent) event).getRealmId());
+            }
+        });
+    }
+}
@@ -0,0 +1,119 @@
+package sh.libre.scim.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import de.captaingoldfish.scim.sdk.common.resources.ResourceNode;
+
+/**
+ * What an import needs to know about the local side, loaded in bulk instead of
+ * queried for every remote resource: the mappings of the component and type,
+ * SCIM id to local id, and, for the chunk being imported, which mapped local
+ * resources still exist and which local resources the unmapped remote ones
+ * match. A full import loads all mappings up front; an incremental one, which
+ * only sees a few resources, looks up those of each chunk. Mappings created or
+ * deleted by the import are recorded here too.
+ */
+public class ScimImportSnapshot<S extends ResourceNode> {
+    final private Map<String, String> mappings;
+    // Whether mappings holds every mapping, or only those of the chunks seen so far
+    final private boolean complete;
+    private Set<String> existing = Set.of();
+    private Map<String, String> matches = Map.of();
+    // Matched local ids that already have a mapping, to another remote resource
+    final private Set<String> taken = new HashSet<>();
+
+    protected ScimImportSnapshot(Map<String, String> mappings, boolean complete) {
+        this.mappings = mappings;
+        this.complete = complete;
+    }
+
+    /**
+     * Loads every mapping of the adapter's component and type.
+     */
+    public static <S extends ResourceNode> ScimImportSnapshot<S> load(Adapter<?, S> adapter) {
+        return new ScimImportSnapshot<>(adapter.getMappingIds(), true);
+    }
+
+    /**
+     * Looks the mappings up chunk by chunk, in {@link #prepare(Adapter, List)}.
+     */
+    public static <S extends ResourceNode> ScimImportSnapshot<S> lazy() {
+        return new ScimImportSnapshot<>(new HashMap<>(), false);
+    }
+
+    /**
+     * Resolves local existence and matches for a chunk of remote resources, in a
+     * few queries for the whole chunk.
+     */
+    public void prepare(Adapter<?, S> adapter, List<S> resources) {
+        if (!complete) {
+            var externalIds = resources.stream().map(r -> r.getId().orElse(null)).filter(Objects::nonNull).toList();
+            mappings.putAll(adapter.getInternalIds(adapter.getType(), externalIds));
+        }
+        var mapped = new ArrayList<String>();
+        for (var resource : resources) {
+            var id = getMappedId(resource);
+            if (id != null) {
+                mapped.add(id);
+            }
+        }
+        existing = adapter.getExistingIds(mapped);
+        // Resources with a dangling mapping are matched like unmapped ones
+        var unmapped = new ArrayList<S>();
+        for (var resource : resources) {
+            var id = getMappedId(resource);
+            if (id == null || !existing.contains(id)) {
+                unmapped.add(resource);
+            }
+        }
+        matches = unmapped.isEmpty() ? Map.of() : adapter.findLocalMatches(unmapped);
+        if (!matches.isEmpty()) {
+            taken.addAll(adapter.getExternalIds(adapter.getType(), new HashSet<>(matches.values())).keySet());
+        }
+    }
+
+    protected String getMappedId(S resource) {
+        return resource.getId().map(mappings::get).orElse(null);
+    }
+
+    /**
+     * The local id the SCIM id is mapped to, or null.
+     */
+    public String getMappedId(String externalId) {
+        return mappings.get(externalId);
+    }
+
+    public boolean exists(String id) {
+        return existing.contains(id);
+    }
+
+    /**
+     * The local resource matching the remote one, or null.
+     */
+    public String getMatch(String externalId) {
+        return matches.get(externalId);
+    }
+
+    /**
+     * Whether the local resource is already mapped, so it can't be mapped to
+     * another remote resource.
+     */
+    public boolean isTaken(String id) {
+        return taken.contains(id);
+    }
+
+    public void mapped(String externalId, String id) {
+        mappings.put(externalId, id);
+        taken.add(id);
+    }
+
+    public void unmapped(String externalId) {
+        mappings.remove(externalId);
+    }
+}
@@ -0,0 +1,161 @@
+package sh.libre.scim.core;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.jboss.logging.Logger;
+import org.keycloak.component.ComponentModel;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import de.captaingoldfish.scim.sdk.client.response.ServerResponse;
+import io.github.resilience4j.retry.Retry;
+import sh.libre.scim.storage.ScimSynchronizationResult;
+
+/**
+ * Micrometer meters for SCIM traffic, registered in the global registry that
+ * Keycloak exposes on its metrics endpoint when metrics are enabled:
+ * <ul>
+ * <li>scim.client.requests - request latency per target, resource type,
+ * operation and HTTP status</li>
+ * <li>scim.client.requests.active - requests in flight per target</li>
+ * <li>scim.client.retries - retried attempts per target and operation</li>
+ * <li>scim.dispatch.operations - propagated changes per target, resource type,
+ * operation and mode (sync or async)</li>
+ * <li>scim.sync.duration and scim.sync.resources - sync runs and their results,
+ * matching the sync result shown in the admin console</li>
+ * </ul>
+ * Everything is a no-op when Micrometer isn't on the classpath.
+ */
+public class ScimMetrics {
+    final private static Logger LOGGER = Logger.getLogger(ScimMetrics.class);
+    final private static boolean ENABLED = isMicrometerAvailable();
+
+    private static boolean isMicrometerAvailable() {
+        try {
+            Class.forName("io.micrometer.core.instrument.Metrics", false, ScimMetrics.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            LOGGER.info("Micrometer not available, SCIM metrics are disabled");
+            return false;
+        }
+    }
+
+    /**
+     * Sends a request, timing it and counting it as in flight meanwhile.
+     */
+    public static <T> ServerResponse<T> record(ComponentModel model, String resourceType, String operation,
+            Supplier<ServerResponse<T>> request) {
+        if (!ENABLED) {
+            return request.get();
+        }
+        var target = model.getName();
+        var active = Meters.active(target);
+        var start = System.nanoTime();
+        var status = "IO_ERROR";
+        active.incrementAndGet();
+        try {
+            var response = request.get();
+            status = String.valueOf(response.getHttpStatus());
+            return response;
+        } finally {
+            active.decrementAndGet();
+            Meters.request(target, resourceType, operation, status, System.nanoTime() - start);
+        }
+    }
+
+    public static void bindRetry(ComponentModel model, Retry retry) {
+        if (ENABLED) {
+            var target = model.getName();
+            retry.getEventPublisher().onRetry(event -> Meters.retry(target, event.getName()));
+        }
+    }
+
+    public static void dispatched(ComponentModel model, String resourceType, ScimOperation.Type type, boolean async) {
+        if (ENABLED) {
+            Meters.dispatched(model.getName(), resourceType, type.name(), async ? "async" : "sync");
+        }
+    }
+
+    public static void sync(ComponentModel model, String mode, long durationMillis, SynchronizationResult result) {
+        if (!ENABLED) {
+            return;
+        }
+        var target = model.getName();
+        Meters.sync(target, mode, durationMillis);
+        if (result instanceof ScimSynchronizationResult scimResult) {
+            Meters.synced(target, ScimOperation.TYPE_USER, "added", scimResult.getAddedUsers().size());
+            Meters.synced(target, ScimOperation.TYPE_USER, "updated", scimResult.getUpdatedUsers().size());
+            Meters.synced(target, ScimOperation.TYPE_USER, "removed", scimResult.getRemovedUsers().size());
+            Meters.synced(target, ScimOperation.TYPE_USER, "failed", scimResult.getFailedUsers().size());
+            Meters.synced(target, ScimOperation.TYPE_USER, "mapped", scimResult.getMappedUsers().size());
+            Meters.synced(target, ScimOperation.TYPE_GROUP, "added", scimResult.getAddedGroups().size());
+            Meters.synced(target, ScimOperation.TYPE_GROUP, "updated", scimResult.getUpdatedGroups().size());
+            Meters.synced(target, ScimOperation.TYPE_GROUP, "removed", scimResult.getRemovedGroups().size());
+            Meters.synced(target, ScimOperation.TYPE_GROUP, "failed", scimResult.getFailedGroups().size());
+            Meters.synced(target, ScimOperation.TYPE_GROUP, "mapped", scimResult.getMappedGroups().size());
+        }
+    }
+
+    /**
+     * Holds every reference to Micrometer, so the class is only loaded when it is
+     * available.
+     */
+    private static class Meters {
+        final private static Map<String, AtomicInteger> active = new ConcurrentHashMap<>();
+
+        private static io.micrometer.core.instrument.MeterRegistry registry() {
+            return io.micrometer.core.instrument.Metrics.globalRegistry;
+        }
+
+        static AtomicInteger active(String target) {
+            return active.computeIfAbsent(target, t -> {
+                var counter = new AtomicInteger();
+                io.micrometer.core.instrument.Gauge.builder("scim.client.requests.active", counter, AtomicInteger::get)
+                        .description("SCIM requests in flight")
+                        .tag("target", t)
+                        .register(registry());
+                return counter;
+            });
+        }
+
+        static void request(String target, String resourceType, String operation, String status, long nanos) {
+            io.micrometer.core.instrument.Timer.builder("scim.client.requests")
+                    .description("SCIM requests sent to the target")
+                    .tag("target", target)
+                    .tag("resource_type", resourceType)
+                    .tag("operation", operation)
+                    .tag("status", status)
+                    .publishPercentileHistogram()
+                    .register(registry())
+                    .record(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        static void retry(String target, String operation) {
+            registry().counter("scim.client.retries", "target", target, "operation", operation).increment();
+        }
+
+        static void dispatched(String target, String resourceType, String operation, String mode) {
+            registry().counter("scim.dispatch.operations", "target", target, "resource_type", resourceType,
+                    "operation", operation, "mode", mode).increment();
+        }
+
+        static void sync(String target, String mode, long durationMillis) {
+            io.micrometer.core.instrument.Timer.builder("scim.sync.duration")
+                    .description("Duration of SCIM sync runs")
+                    .tag("target", target)
+                    .tag("mode", mode)
+                    .register(registry())
+                    .record(durationMillis, TimeUnit.MILLISECONDS);
+        }
+
+        static void synced(String target, String resourceType, String result, int count) {
+            if (count > 0) {
+                registry().counter("scim.sync.resources", "target", target, "resource_type", resourceType,
+                        "result", result).increment(count);
+            }
+        }
+    }
+}
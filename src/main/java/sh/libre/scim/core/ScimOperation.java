@@ -0,0 +1,197 @@
+package sh.libre.scim.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import de.captaingoldfish.scim.sdk.client.response.ServerResponse;
+import sh.libre.scim.jpa.ScimOutboxEntry;
+
+/**
+ * A single change to propagate to one SCIM component. It only carries ids so it
+ * can be recorded in the outbox and executed later on another session.
+ */
+public class ScimOperation {
+    public static final String TYPE_USER = "User";
+    public static final String TYPE_GROUP = "Group";
+
+    public enum Type {
+        CREATE, REPLACE, DELETE, MEMBER_ADD, MEMBER_REMOVE, REPLACE_MEMBERS
+    }
+
+    final private static Logger LOGGER = Logger.getLogger(ScimOperation.class);
+
+    final private String realmId;
+    final private String componentId;
+    final private String resourceType;
+    final private String resourceId;
+    final private Type type;
+    final private String memberId;
+
+    public ScimOperation(String realmId, String componentId, String resourceType, String resourceId, Type type) {
+        this(realmId, componentId, resourceType, resourceId, type, null);
+    }
+
+    /**
+     * @param memberId the user joining or leaving the group for MEMBER_ADD and MEMBER_REMOVE
+     */
+    public ScimOperation(String realmId, String componentId, String resourceType, String resourceId, Type type,
+            String memberId) {
+        this.realmId = realmId;
+        this.componentId = componentId;
+        this.resourceType = resourceType;
+        this.resourceId = resourceId;
+        this.type = type;
+        this.memberId = memberId;
+    }
+
+    public String getRealmId() {
+        return realmId;
+    }
+
+    public String getComponentId() {
+        return componentId;
+    }
+
+    public String getResourceType() {
+        return resourceType;
+    }
+
+    public String getResourceId() {
+        return resourceId;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getMemberId() {
+        return memberId;
+    }
+
+    public static ScimOperation fromOutboxEntry(ScimOutboxEntry entry) {
+        return new ScimOperation(entry.getRealmId(), entry.getComponentId(), entry.getResourceType(),
+                entry.getResourceId(), Type.valueOf(entry.getOperation()), entry.getMemberId());
+    }
+
+    public ScimOutboxEntry toOutboxEntry() {
+        var entry = new ScimOutboxEntry();
+        var now = Time.currentTimeMillis();
+        entry.setEntryId(KeycloakModelUtils.generateId());
+        entry.setRealmId(realmId);
+        entry.setComponentId(componentId);
+        entry.setResourceType(resourceType);
+        entry.setResourceId(resourceId);
+        entry.setOperation(type.name());
+        entry.setMemberId(memberId);
+        entry.setStatus(ScimOutboxEntry.STATUS_PENDING);
+        entry.setCreatedTimestamp(now);
+        entry.setNextAttempt(now);
+        return entry;
+    }
+
+    /**
+     * Merges operations recorded for the same resource, oldest first, into the
+     * smallest list that leaves the target in the same final state: a delete wins
+     * over everything, a create or full replace already carries every attribute
+     * and member change, and only the last change per member is kept otherwise.
+     * Replacing the members of a group is kept once, after everything else.
+     */
+    public static List<ScimOperation> coalesce(List<ScimOperation> operations) {
+        if (operations.size() < 2) {
+            return operations;
+        }
+        ScimOperation create = null;
+        ScimOperation replace = null;
+        ScimOperation replaceMembers = null;
+        var members = new LinkedHashMap<String, ScimOperation>();
+        for (var operation : operations) {
+            switch (operation.type) {
+                case DELETE:
+                    return List.of(operation);
+                case CREATE:
+                    create = create == null ? operation : create;
+                    break;
+                case REPLACE:
+                    replace = replace == null ? operation : replace;
+                    break;
+                case REPLACE_MEMBERS:
+                    replaceMembers = replaceMembers == null ? operation : replaceMembers;
+                    break;
+                default:
+                    members.remove(operation.memberId);
+                    members.put(operation.memberId, operation);
+            }
+        }
+        var result = new ArrayList<ScimOperation>();
+        if (create != null) {
+            result.add(create);
+        } else if (replace != null) {
+            result.add(replace);
+        } else {
+            result.addAll(members.values());
+        }
+        if (replaceMembers != null) {
+            result.add(replaceMembers);
+        }
+        return result;
+    }
+
+    public String getKey() {
+        return "%s/%s/%s".formatted(componentId, resourceType, resourceId);
+    }
+
+    /**
+     * Executes the operation and returns the last SCIM response, or null when
+     * nothing had to be sent.
+     */
+    public ServerResponse<?> execute(ScimClient client) {
+        var session = client.session;
+        var realm = session.getContext().getRealm();
+        if (TYPE_GROUP.equals(resourceType)) {
+            if (type == Type.DELETE) {
+                return client.delete(GroupAdapter.class, resourceId);
+            }
+            var group = session.groups().getGroupById(realm, resourceId);
+            if (group == null) {
+                LOGGER.warnf("Skipping %s, group no longer exists", this);
+                return null;
+            }
+            if (type == Type.CREATE) {
+                return client.create(GroupAdapter.class, group);
+            }
+            if (type == Type.REPLACE_MEMBERS) {
+                return client.replaceMembers(group);
+            }
+            if (type == Type.MEMBER_ADD || type == Type.MEMBER_REMOVE) {
+                return client.patchMember(group, memberId, type == Type.MEMBER_ADD);
+            }
+            return client.tryReplace(GroupAdapter.class, group);
+        } else {
+            if (type == Type.DELETE) {
+                return client.delete(UserAdapter.class, resourceId);
+            }
+            var user = session.users().getUserById(realm, resourceId);
+            if (user == null) {
+                LOGGER.warnf("Skipping %s, user no longer exists", this);
+                return null;
+            }
+            if (type == Type.CREATE) {
+                return client.create(UserAdapter.class, user);
+            }
+            return client.tryReplace(UserAdapter.class, user);
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (memberId != null) {
+            return "%s %s %s member %s (component %s)".formatted(type, resourceType, resourceId, memberId, componentId);
+        }
+        return "%s %s %s (component %s)".formatted(type, resourceType, resourceId, componentId);
+    }
+}
@@ -0,0 +1,115 @@
+package sh.libre.scim.core;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import de.captaingoldfish.scim.sdk.common.resources.ResourceNode;
+
+import org.jboss.logging.Logger;
+
+/**
+ * Walks a SCIM list endpoint one page at a time using startIndex/count, so large
+ * collections never have to be held in memory at once.
+ */
+public class ScimPageIterator<S extends ResourceNode> implements Iterator<List<S>> {
+    final private static Logger LOGGER = Logger.getLogger(ScimPageIterator.class);
+
+    final private ScimClient client;
+    final private String url;
+    final private Class<S> resourceClass;
+    final private String filter;
+    final private int pageSize;
+
+    private long startIndex = 1;
+    private long firstIndex = 1;
+    private long totalResults = -1;
+    private String firstResourceId;
+    private List<S> nextPage;
+    private boolean done = false;
+
+    public ScimPageIterator(ScimClient client, String url, Class<S> resourceClass, String filter,
+            int pageSize) {
+        this.client = client;
+        this.url = url;
+        this.resourceClass = resourceClass;
+        this.filter = filter;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Starts listing at the given 1-based index instead of the first resource.
+     */
+    public ScimPageIterator<S> startAt(long startIndex) {
+        this.startIndex = Math.max(1, startIndex);
+        this.firstIndex = this.startIndex;
+        return this;
+    }
+
+    /**
+     * The index the next page starts at.
+     */
+    public long getStartIndex() {
+        return startIndex;
+    }
+
+    public long getTotalResults() {
+        return totalResults;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextPage == null && !done) {
+            nextPage = fetch();
+        }
+        return nextPage != null;
+    }
+
+    @Override
+    public List<S> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        var page = nextPage;
+        nextPage = null;
+        return page;
+    }
+
+    protected List<S> fetch() {
+        if (totalResults >= 0 && startIndex > totalResults) {
+            done = true;
+            return null;
+        }
+        LOGGER.debugf("Sending SCIM list request to %s (startIndex=%d, count=%d, filter=%s)", url, startIndex,
+                pageSize, filter);
+        var listBuilder = client.scimRequestBuilder.list(url, resourceClass)
+                .startIndex(startIndex)
+                .count(pageSize);
+        if (filter != null) {
+            listBuilder.filter(filter);
+        }
+        var response = client.send(resourceClass.getSimpleName(), "list", () -> listBuilder.get().sendRequest());
+        if (!response.isSuccess()) {
+            throw new RuntimeException("Failed to list %s: HTTP %d - %s".formatted(url, response.getHttpStatus(),
+                    response.getResponseBody()));
+        }
+        var listResponse = response.getResource();
+        var resources = listResponse.getListedResources();
+        totalResults = listResponse.getTotalResults();
+        if (resources.isEmpty()) {
+            done = true;
+            return null;
+        }
+        var firstId = resources.get(0).getId().orElse(null);
+        if (startIndex > firstIndex && firstId != null && firstId.equals(firstResourceId)) {
+            LOGGER.warnf("%s ignores startIndex, stopping after the first page", url);
+            done = true;
+            return null;
+        }
+        if (startIndex == firstIndex) {
+            firstResourceId = firstId;
+        }
+        startIndex += resources.size();
+        return resources;
+    }
+}
@@ -0,0 +1,411 @@
+package sh.libre.scim.core;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.persistence.EntityManager;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import sh.libre.scim.jpa.ScimOutboxEntry;
+
+/**
+ * Background dispatcher for asynchronous propagation. Operations are written to
+ * the SCIM_OUTBOX table in the same transaction as the change that caused them,
+ * handed to a worker once that transaction commits, and marked delivered once
+ * the SCIM server accepted them. A periodic poll picks up whatever was left
+ * behind by a restart or a failed attempt, so delivery is at-least-once.
+ * Operations on the same resource always land on the same worker so they are
+ * sent in order. Delivery is held back for a short window so bursts of events
+ * on one resource (an admin edit touching attributes, groups and several roles)
+ * are coalesced and only the final state is sent.
+ * <p>
+ * Failed deliveries are rescheduled with an exponential backoff rather than
+ * retried on the worker thread. Entries that still fail after the maximum number
+ * of attempts are moved to the DEAD status, where they stay, with their last
+ * error, until they are replayed. Attempts rejected by an open circuit breaker
+ * or held back by the target's throttle don't count, so an outage or a rate
+ * limit of the target doesn't exhaust them.
+ */
+public class ScimPropagationExecutor {
+    final private static Logger LOGGER = Logger.getLogger(ScimPropagationExecutor.class);
+    final private static long LEASE_TIME = TimeUnit.MINUTES.toMillis(5);
+    final private static long MAX_BACKOFF = TimeUnit.HOURS.toMillis(1);
+    final private static int POLL_BATCH_SIZE = 500;
+    private static ScimPropagationExecutor instance;
+
+    final private KeycloakSessionFactory sessionFactory;
+    final private ExecutorService[] workers;
+    final private ScheduledExecutorService scheduler;
+    final private Set<String> queued = ConcurrentHashMap.newKeySet();
+    final private long retention;
+    final private long coalesceWindow;
+    final private int maxAttempts;
+
+    private ScimPropagationExecutor(KeycloakSessionFactory sessionFactory, int workers, long pollInterval,
+            long retention, long coalesceWindow, int maxAttempts) {
+        this.sessionFactory = sessionFactory;
+        this.retention = retention;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.coalesceWindow = Math.max(0, Math.min(coalesceWindow, LEASE_TIME / 2));
+        this.workers = new ExecutorService[Math.max(1, workers)];
+        for (int i = 0; i < this.workers.length; i++) {
+            var name = "scim-propagation-" + i;
+            this.workers[i] = Executors.newSingleThreadExecutor(r -> {
+                var thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "scim-outbox-poller");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::poll, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+    }
+
+    public static synchronized void init(KeycloakSessionFactory sessionFactory, int workers, long pollInterval,
+            long retention, long coalesceWindow, int maxAttempts) {
+        if (instance == null) {
+            LOGGER.infof("Starting SCIM propagation executor with %d workers", workers);
+            instance = new ScimPropagationExecutor(sessionFactory, workers, pollInterval, retention, coalesceWindow,
+                    maxAttempts);
+        }
+    }
+
+    public static synchronized ScimPropagationExecutor getInstance() {
+        return instance;
+    }
+
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.scheduler.shutdownNow();
+            for (var worker : instance.workers) {
+                worker.shutdown();
+            }
+            for (var worker : instance.workers) {
+                try {
+                    worker.awaitTermination(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            instance = null;
+        }
+    }
+
+    /**
+     * How long delivered entries are kept, in milliseconds.
+     */
+    public long getRetention() {
+        return retention;
+    }
+
+    protected static EntityManager getEM(KeycloakSession session) {
+        return session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+
+    /**
+     * Records the operation in the outbox as part of the current transaction and
+     * dispatches it right after the transaction commits.
+     */
+    public void enqueue(KeycloakSession session, ScimOperation operation) {
+        var entry = operation.toOutboxEntry();
+        entry.setNextAttempt(entry.getNextAttempt() + coalesceWindow);
+        getEM(session).persist(entry);
+        session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+            @Override
+            protected void commitImpl() {
+                if (coalesceWindow == 0) {
+                    submit(entry.getEntryId(), operation);
+                    return;
+                }
+                try {
+                    scheduler.schedule(() -> submit(entry.getEntryId(), operation), coalesceWindow,
+                            TimeUnit.MILLISECONDS);
+                } catch (Exception e) {
+                    LOGGER.warnf("Could not schedule %s, it will be retried by the outbox poller", operation);
+                }
+            }
+
+            @Override
+            protected void rollbackImpl() {
+                LOGGER.debugf("Dropping %s, transaction rolled back", operation);
+            }
+        });
+    }
+
+    /**
+     * Records an operation that failed when sent synchronously, so it is retried
+     * in the background after the current transaction commits.
+     */
+    public void defer(KeycloakSession session, ScimOperation operation, Exception cause) {
+        var entry = operation.toOutboxEntry();
+        if (cause instanceof ScimThrottledException throttled) {
+            entry.setNextAttempt(throttled.getRetryAt());
+        } else {
+            entry.setAttempts(1);
+            entry.setNextAttempt(entry.getNextAttempt() + backoff(1));
+        }
+        entry.setLastError(StringUtils.abbreviate(cause.getMessage(), 255));
+        getEM(session).persist(entry);
+    }
+
+    /**
+     * Puts the dead entries of the component back in the queue, with a fresh
+     * number of attempts. Returns how many entries were replayed.
+     */
+    public static int replayDeadLetters(KeycloakSession session, String componentId) {
+        var replayed = getEM(session).createNamedQuery("replayDeadOutboxEntries")
+                .setParameter("componentId", componentId)
+                .setParameter("now", Time.currentTimeMillis())
+                .executeUpdate();
+        if (replayed > 0) {
+            LOGGER.infof("Replaying %d dead SCIM outbox entries of component %s", replayed, componentId);
+        }
+        return replayed;
+    }
+
+    protected void submit(String entryId, ScimOperation operation) {
+        if (!queued.add(entryId)) {
+            return;
+        }
+        var index = Math.floorMod(operation.getKey().hashCode(), workers.length);
+        try {
+            workers[index].execute(() -> {
+                try {
+                    deliver(entryId, operation);
+                } finally {
+                    queued.remove(entryId);
+                }
+            });
+        } catch (Exception e) {
+            queued.remove(entryId);
+            LOGGER.warnf("Could not queue %s, it will be retried by the outbox poller", operation);
+        }
+    }
+
+    protected void poll() {
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                var em = getEM(session);
+                var now = Time.currentTimeMillis();
+                em.createNamedQuery("purgeDeliveredOutboxEntries")
+                        .setParameter("before", now - retention)
+                        .executeUpdate();
+                em.createNamedQuery("findPendingOutboxEntries", ScimOutboxEntry.class)
+                        .setParameter("now", now)
+                        .setMaxResults(POLL_BATCH_SIZE)
+                        .getResultStream()
+                        .forEach(entry -> submit(entry.getEntryId(), ScimOperation.fromOutboxEntry(entry)));
+            });
+        } catch (Exception e) {
+            LOGGER.error("Failed to poll SCIM outbox", e);
+        }
+    }
+
+    /**
+     * Leases the entry and every other pending entry for the same resource that
+     * is due within the coalescing window. Returns the ids of the leased entries,
+     * oldest first, or an empty list if the entry was already taken.
+     */
+    protected List<String> claim(String entryId, ScimOperation operation) {
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            var em = getEM(session);
+            var now = Time.currentTimeMillis();
+            var leaseUntil = now + LEASE_TIME;
+            var claimed = new ArrayList<String>();
+            if (!claim(em, entryId, now, leaseUntil)) {
+                return claimed;
+            }
+            var until = now + coalesceWindow;
+            em.createNamedQuery("findPendingOutboxEntriesForResource", ScimOutboxEntry.class)
+                    .setParameter("componentId", operation.getComponentId())
+                    .setParameter("resourceType", operation.getResourceType())
+                    .setParameter("resourceId", operation.getResourceId())
+                    .setParameter("until", until)
+                    .getResultStream()
+                    .map(ScimOutboxEntry::getEntryId)
+                    .filter(id -> !id.equals(entryId))
+                    .toList()
+                    .forEach(id -> {
+                        if (claim(em, id, until, leaseUntil)) {
+                            claimed.add(id);
+                        }
+                    });
+            claimed.add(0, entryId);
+            return claimed;
+        });
+    }
+
+    protected boolean claim(EntityManager em, String entryId, long dueBefore, long leaseUntil) {
+        return em.createNamedQuery("claimOutboxEntry")
+                .setParameter("entryId", entryId)
+                .setParameter("now", dueBefore)
+                .setParameter("leaseUntil", leaseUntil)
+                .executeUpdate() == 1;
+    }
+
+    /**
+     * Sends the coalesced operations of the claimed entries one by one. Each
+     * operation runs in its own transaction together with marking its entry
+     * delivered, so what reached the target, e.g. the mapping of a created group,
+     * is kept when a later operation fails. Only the entries that weren't
+     * delivered are rescheduled; entries absorbed by coalescing are delivered
+     * with the last operation.
+     */
+    protected void deliver(String entryId, ScimOperation operation) {
+        var remaining = new ArrayList<String>();
+        try {
+            remaining.addAll(claim(entryId, operation));
+            if (remaining.isEmpty()) {
+                LOGGER.debugf("%s already claimed, skipping", operation);
+                return;
+            }
+            var deliveries = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                var em = getEM(session);
+                var entries = remaining.stream()
+                        .map(id -> em.find(ScimOutboxEntry.class, id))
+                        .filter(Objects::nonNull)
+                        .toList();
+                var realm = session.realms().getRealm(operation.getRealmId());
+                if (realm == null || realm.getComponent(operation.getComponentId()) == null) {
+                    LOGGER.warnf("Dropping %s, component no longer exists", operation);
+                    return null;
+                }
+                // Coalescing keeps the operation instances, which lead back to their entry
+                var entryIds = new IdentityHashMap<ScimOperation, String>();
+                var operations = new ArrayList<ScimOperation>();
+                for (var entry : entries) {
+                    var op = ScimOperation.fromOutboxEntry(entry);
+                    entryIds.put(op, entry.getEntryId());
+                    operations.add(op);
+                }
+                var coalesced = ScimOperation.coalesce(operations);
+                if (entries.size() > 1) {
+                    LOGGER.debugf("Coalesced %d operations on %s into %d", entries.size(), operation.getKey(),
+                            coalesced.size());
+                }
+                return coalesced.stream().map(op -> Map.entry(entryIds.get(op), op)).toList();
+            });
+            if (deliveries == null) {
+                return;
+            }
+            for (var delivery : deliveries) {
+                renew(remaining);
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                    var realm = session.realms().getRealm(operation.getRealmId());
+                    session.getContext().setRealm(realm);
+                    var component = realm.getComponent(operation.getComponentId());
+                    var client = new ScimClient(component, session).withoutInlineRetry()
+                            .withHeartbeat(() -> renew(remaining));
+                    try {
+                        var response = delivery.getValue().execute(client);
+                        if (response != null && isRetryable(response.getHttpStatus())) {
+                            throw new RuntimeException("SCIM server answered HTTP " + response.getHttpStatus());
+                        }
+                    } finally {
+                        client.close();
+                    }
+                    markDelivered(getEM(session), List.of(delivery.getKey()));
+                });
+                remaining.remove(delivery.getKey());
+            }
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> markDelivered(getEM(session), remaining));
+        } catch (Exception e) {
+            LOGGER.warnf("Failed to propagate %s: %s", operation, e.getMessage());
+            reschedule(remaining, e);
+        }
+    }
+
+    /**
+     * Extends the lease of entries still being delivered, so a delivery that
+     * outlasts LEASE_TIME, like a member fan-out over a large group, isn't
+     * claimed again by another poller meanwhile.
+     */
+    protected void renew(List<String> entryIds) {
+        if (entryIds.isEmpty()) {
+            return;
+        }
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> getEM(session)
+                    .createNamedQuery("renewOutboxEntries")
+                    .setParameter("entryIds", List.copyOf(entryIds))
+                    .setParameter("leaseUntil", Time.currentTimeMillis() + LEASE_TIME)
+                    .executeUpdate());
+        } catch (Exception e) {
+            LOGGER.warnf("Failed to renew the lease of SCIM outbox entries %s: %s", entryIds, e.getMessage());
+        }
+    }
+
+    protected void markDelivered(EntityManager em, List<String> entryIds) {
+        var now = Time.currentTimeMillis();
+        for (var id : entryIds) {
+            var entry = em.find(ScimOutboxEntry.class, id);
+            if (entry != null) {
+                entry.setStatus(ScimOutboxEntry.STATUS_DELIVERED);
+                entry.setDeliveredTimestamp(now);
+                entry.setLastError(null);
+            }
+        }
+    }
+
+    protected void reschedule(List<String> entryIds, Exception cause) {
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                var em = getEM(session);
+                for (var entryId : entryIds) {
+                    var entry = em.find(ScimOutboxEntry.class, entryId);
+                    if (entry == null) {
+                        continue;
+                    }
+                    // Nothing was sent while the circuit breaker is open or the target throttled
+                    var notSent = cause instanceof CallNotPermittedException
+                            || cause instanceof ScimThrottledException;
+                    var attempts = notSent ? entry.getAttempts() : entry.getAttempts() + 1;
+                    entry.setAttempts(attempts);
+                    if (cause instanceof ScimThrottledException throttled) {
+                        entry.setNextAttempt(throttled.getRetryAt());
+                    } else {
+                        entry.setNextAttempt(Time.currentTimeMillis() + backoff(Math.max(1, attempts)));
+                    }
+                    entry.setLastError(StringUtils.abbreviate(cause.getMessage(), 255));
+                    if (attempts >= maxAttempts) {
+                        LOGGER.warnf("Giving up on SCIM outbox entry %s (%s %s %s) after %d attempts: %s",
+                                entryId, entry.getOperation(), entry.getResourceType(), entry.getResourceId(),
+                                attempts, entry.getLastError());
+                        entry.setStatus(ScimOutboxEntry.STATUS_DEAD);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            LOGGER.error("Failed to reschedule SCIM outbox entries " + entryIds, e);
+        }
+    }
+
+    protected static boolean isRetryable(int httpStatus) {
+        return httpStatus == 429 || httpStatus >= 500;
+    }
+
+    protected static long backoff(int attempts) {
+        return Math.min(MAX_BACKOFF, TimeUnit.SECONDS.toMillis(1L << Math.min(attempts, 12)));
+    }
+}
@@ -0,0 +1,131 @@
+package sh.libre.scim.core;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+import org.keycloak.storage.user.SynchronizationResult;
+
+import sh.libre.scim.jpa.ScimSyncState;
+
+/**
+ * Progress of a full sync of one resource type, saved in SCIM_SYNC_STATE after
+ * every imported page and every refreshed chunk. A sync interrupted by a
+ * restart, a deploy or a timeout resumes from the saved phase and cursor, with
+ * the counters of the interrupted run, instead of starting over. Checkpoints
+ * older than a day are dropped; positions that old no longer mean much.
+ */
+public class ScimSyncCheckpoint {
+    final private static Logger LOGGER = Logger.getLogger(ScimSyncCheckpoint.class);
+    public static final String PHASE_IMPORT = "IMPORT";
+    public static final String PHASE_REFRESH = "REFRESH";
+    final private static List<String> PHASES = List.of(PHASE_IMPORT, PHASE_REFRESH);
+    final private static long MAX_AGE = TimeUnit.DAYS.toMillis(1);
+
+    final private ScimClient client;
+    final private ScimSyncState state;
+    final private SynchronizationResult syncRes;
+    // Counters of the sync result that don't belong to this run
+    final private int[] base;
+    final private boolean resumed;
+
+    protected ScimSyncCheckpoint(ScimClient client, ScimSyncState state, SynchronizationResult syncRes, int[] base,
+            boolean resumed) {
+        this.client = client;
+        this.state = state;
+        this.syncRes = syncRes;
+        this.base = base;
+        this.resumed = resumed;
+    }
+
+    /**
+     * Picks up the checkpoint of an interrupted sync, adding its counters to the
+     * sync result, or starts a new one.
+     */
+    public static ScimSyncCheckpoint start(ScimClient client, String type, SynchronizationResult syncRes) {
+        var state = client.loadSyncState(type);
+        var now = Time.currentTimeMillis();
+        var restored = new int[4];
+        var resumed = state.getSyncPhase() != null && state.getSyncStarted() != null
+                && now - state.getSyncStarted() < MAX_AGE;
+        if (resumed) {
+            LOGGER.infof("Resuming %s sync of component %s from %s at %d", type, state.getComponentId(),
+                    state.getSyncPhase(), state.getSyncCursor());
+            restored = new int[] { valueOf(state.getSyncAdded()), valueOf(state.getSyncUpdated()),
+                    valueOf(state.getSyncRemoved()), valueOf(state.getSyncFailed()) };
+            ScimDistributedSync.addCounts(syncRes, restored[0], restored[1], restored[2], restored[3]);
+        } else {
+            clear(state);
+            state.setSyncStarted(now);
+        }
+        var counts = counts(syncRes);
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] -= restored[i];
+        }
+        return new ScimSyncCheckpoint(client, state, syncRes, counts, resumed);
+    }
+
+    /**
+     * Whether this sync picked up an interrupted one.
+     */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * Whether the interrupted sync was already past the phase.
+     */
+    public boolean isPast(String phase) {
+        return state.getSyncPhase() != null && PHASES.indexOf(state.getSyncPhase()) > PHASES.indexOf(phase);
+    }
+
+    /**
+     * Where to resume the phase, or the initial cursor when it wasn't started.
+     */
+    public long getCursor(String phase, long initial) {
+        if (phase.equals(state.getSyncPhase()) && state.getSyncCursor() != null) {
+            return state.getSyncCursor();
+        }
+        return initial;
+    }
+
+    public void save(String phase, long cursor) {
+        var counts = counts(syncRes);
+        state.setSyncPhase(phase);
+        state.setSyncCursor(cursor);
+        state.setSyncAdded(counts[0] - base[0]);
+        state.setSyncUpdated(counts[1] - base[1]);
+        state.setSyncRemoved(counts[2] - base[2]);
+        state.setSyncFailed(counts[3] - base[3]);
+        client.saveSyncState(state);
+    }
+
+    /**
+     * Drops the checkpoint once the sync completed.
+     */
+    public void finish() {
+        clear(state);
+        client.saveSyncState(state);
+    }
+
+    protected static void clear(ScimSyncState state) {
+        state.setSyncPhase(null);
+        state.setSyncCursor(null);
+        state.setSyncStarted(null);
+        state.setSyncAdded(null);
+        state.setSyncUpdated(null);
+        state.setSyncRemoved(null);
+        state.setSyncFailed(null);
+    }
+
+    protected static int[] counts(SynchronizationResult syncRes) {
+        synchronized (syncRes) {
+            return new int[] { syncRes.getAdded(), syncRes.getUpdated(), syncRes.getRemoved(), syncRes.getFailed() };
+        }
+    }
+
+    protected static int valueOf(Integer count) {
+        return count == null ? 0 : count;
+    }
+}
@@ -0,0 +1,121 @@
+package sh.libre.scim.core;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import sh.libre.scim.jpa.ScimSyncLock;
+
+/**
+ * Cluster-wide lock on the syncs of one component, held as a row in
+ * SCIM_SYNC_LOCK with a short lease. The lease is renewed in the background for
+ * as long as the sync runs, however long that is, and expires soon after the
+ * node holding it stopped. No transaction is kept open meanwhile.
+ */
+public class ScimSyncLease implements AutoCloseable {
+    final private static Logger LOGGER = Logger.getLogger(ScimSyncLease.class);
+    final private static long LEASE_TIME = TimeUnit.MINUTES.toMillis(5);
+    final private static long RENEW_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    private static ScheduledExecutorService renewer;
+
+    final private KeycloakSessionFactory sessionFactory;
+    final private String componentId;
+    final private String owner;
+    final private ScheduledFuture<?> renewal;
+
+    protected ScimSyncLease(KeycloakSessionFactory sessionFactory, String componentId, String owner) {
+        this.sessionFactory = sessionFactory;
+        this.componentId = componentId;
+        this.owner = owner;
+        this.renewal = getRenewer().scheduleWithFixedDelay(this::renew, RENEW_INTERVAL, RENEW_INTERVAL,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Takes the lock of the component, or returns null when a sync holds it.
+     */
+    public static ScimSyncLease tryAcquire(KeycloakSessionFactory sessionFactory, String realmId,
+            String componentId) {
+        var owner = KeycloakModelUtils.generateId();
+        boolean acquired;
+        try {
+            acquired = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                var em = session.getProvider(JpaConnectionProvider.class).getEntityManager();
+                var now = Time.currentTimeMillis();
+                if (em.find(ScimSyncLock.class, componentId) == null) {
+                    var lock = new ScimSyncLock();
+                    lock.setComponentId(componentId);
+                    lock.setRealmId(realmId);
+                    lock.setOwner(owner);
+                    lock.setLeaseUntil(now + LEASE_TIME);
+                    em.persist(lock);
+                    em.flush();
+                    return true;
+                }
+                // Left behind by a node that stopped
+                return em.createNamedQuery("takeExpiredSyncLock")
+                        .setParameter("componentId", componentId)
+                        .setParameter("owner", owner)
+                        .setParameter("now", now)
+                        .setParameter("leaseUntil", now + LEASE_TIME)
+                        .executeUpdate() == 1;
+            });
+        } catch (Exception e) {
+            // Another node inserted the lock at the same time
+            LOGGER.debugf("Could not take the sync lock of component %s: %s", componentId, e.getMessage());
+            acquired = false;
+        }
+        return acquired ? new ScimSyncLease(sessionFactory, componentId, owner) : null;
+    }
+
+    protected void renew() {
+        try {
+            var renewed = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> session
+                    .getProvider(JpaConnectionProvider.class).getEntityManager()
+                    .createNamedQuery("renewSyncLock")
+                    .setParameter("componentId", componentId)
+                    .setParameter("owner", owner)
+                    .setParameter("leaseUntil", Time.currentTimeMillis() + LEASE_TIME)
+                    .executeUpdate());
+            if (renewed == 0) {
+                LOGGER.warnf("Lost the sync lock of component %s", componentId);
+            }
+        } catch (Exception e) {
+            LOGGER.warnf("Failed to renew the sync lock of component %s: %s", componentId, e.getMessage());
+        }
+    }
+
+    @Override
+    public void close() {
+        renewal.cancel(false);
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> session
+                    .getProvider(JpaConnectionProvider.class).getEntityManager()
+                    .createNamedQuery("releaseSyncLock")
+                    .setParameter("componentId", componentId)
+                    .setParameter("owner", owner)
+                    .executeUpdate());
+        } catch (Exception e) {
+            LOGGER.warnf("Failed to release the sync lock of component %s, it expires in %d minutes: %s",
+                    componentId, TimeUnit.MILLISECONDS.toMinutes(LEASE_TIME), e.getMessage());
+        }
+    }
+
+    protected static synchronized ScheduledExecutorService getRenewer() {
+        if (renewer == null) {
+            renewer = Executors.newSingleThreadScheduledExecutor(r -> {
+                var thread = new Thread(r, "scim-sync-lock-renewer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return renewer;
+    }
+}
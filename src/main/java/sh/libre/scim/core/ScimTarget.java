@@ -0,0 +1,290 @@
+package sh.libre.scim.core;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jakarta.ws.rs.ProcessingException;
+
+import de.captaingoldfish.scim.sdk.client.ScimClientConfig;
+import de.captaingoldfish.scim.sdk.client.ScimRequestBuilder;
+import de.captaingoldfish.scim.sdk.client.http.BasicAuth;
+import de.captaingoldfish.scim.sdk.client.response.ServerResponse;
+import de.captaingoldfish.scim.sdk.common.resources.ServiceProvider;
+
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+import org.keycloak.component.ComponentModel;
+
+import com.google.common.net.HttpHeaders;
+
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.github.resilience4j.core.IntervalFunction;
+import io.github.resilience4j.retry.RetryConfig;
+import io.github.resilience4j.retry.RetryRegistry;
+
+/**
+ * Long-lived connection state for one SCIM component: the request builder (and
+ * so its HTTP client, keep-alive connections and TLS sessions), the retry
+ * registry, the circuit breaker and the target's ServiceProviderConfig. Targets
+ * are shared across sessions and rebuilt whenever the component configuration
+ * changes.
+ * <p>
+ * The circuit breaker opens once half of the last requests failed with an I/O
+ * error, a 429 or a 5xx. While it is open requests fail right away with a
+ * {@link CallNotPermittedException} instead of each waiting for the timeouts,
+ * until a few trial requests succeed again. Requests also go through the
+ * target's {@link ScimThrottle}.
+ */
+public class ScimTarget {
+    final private static Logger LOGGER = Logger.getLogger(ScimTarget.class);
+    final private static Map<String, ScimTarget> targets = new ConcurrentHashMap<>();
+    final private static long SERVICE_PROVIDER_TTL = TimeUnit.HOURS.toMillis(1);
+    final private static Duration CIRCUIT_OPEN_DURATION = Duration.ofSeconds(30);
+
+    final protected String componentId;
+    final protected int configVersion;
+    final protected ComponentModel model;
+    final protected ScimRequestBuilder scimRequestBuilder;
+    final protected RetryRegistry registry;
+    final protected CircuitBreaker circuitBreaker;
+    final protected ScimThrottle throttle;
+    final protected Map<String, String> defaultHeaders;
+    final protected Map<String, String> expectedResponseHeaders;
+    private volatile ServiceProvider serviceProvider;
+    private volatile long serviceProviderFetchedAt;
+    // Clients using the target, and whether it was replaced or removed from targets
+    final private AtomicInteger users = new AtomicInteger();
+    private volatile boolean retired = false;
+    final private AtomicBoolean closed = new AtomicBoolean();
+
+    protected ScimTarget(ComponentModel model) {
+        this.componentId = model.getId();
+        this.configVersion = getConfigVersion(model);
+        this.model = model;
+        this.defaultHeaders = new HashMap<>();
+        this.expectedResponseHeaders = new HashMap<>();
+
+        switch (model.get("auth-mode")) {
+            case "BEARER":
+                defaultHeaders.put(HttpHeaders.AUTHORIZATION,
+                    BearerAuthentication(model.get("auth-pass")));
+                break;
+            case "BASIC_AUTH":
+                defaultHeaders.put(HttpHeaders.AUTHORIZATION,
+                    BasicAuthentication(model.get("auth-user"),
+                                        model.get("auth-pass")));
+                break;
+        }
+
+        defaultHeaders.put(HttpHeaders.CONTENT_TYPE, model.get("content-type"));
+
+        scimRequestBuilder = new ScimRequestBuilder(model.get("endpoint"), genScimClientConfig());
+
+        RetryConfig retryConfig = RetryConfig.custom()
+            .maxAttempts(10)
+            .intervalFunction(IntervalFunction.ofExponentialBackoff())
+            .retryExceptions(ProcessingException.class)
+            .ignoreExceptions(CallNotPermittedException.class, ScimThrottledException.class)
+            .retryOnResult(result -> result instanceof ServerResponse<?> response
+                    && ScimPropagationExecutor.isRetryable(response.getHttpStatus()))
+            .build();
+
+        registry = RetryRegistry.of(retryConfig);
+        registry.getEventPublisher().onEntryAdded(event -> ScimMetrics.bindRetry(model, event.getAddedEntry()));
+
+        CircuitBreakerConfig circuitBreakerConfig = CircuitBreakerConfig.custom()
+            .slidingWindowSize(20)
+            .minimumNumberOfCalls(10)
+            .failureRateThreshold(50)
+            .waitDurationInOpenState(CIRCUIT_OPEN_DURATION)
+            .permittedNumberOfCallsInHalfOpenState(3)
+            .recordExceptions(ProcessingException.class)
+            .recordResult(result -> result instanceof ServerResponse<?> response
+                    && ScimPropagationExecutor.isRetryable(response.getHttpStatus()))
+            .build();
+
+        circuitBreaker = CircuitBreaker.of(model.getId(), circuitBreakerConfig);
+        circuitBreaker.getEventPublisher().onStateTransition(event -> LOGGER.warnf("Circuit breaker of SCIM component %s: %s",
+                model.getName(), event.getStateTransition()));
+
+        throttle = new ScimThrottle(model.getName(), model.get("rate-limit", 0), model.get("max-concurrency", 16));
+    }
+
+    /**
+     * Returns the shared target for the component, building a new one if there is
+     * none yet or if the component configuration changed since it was built. The
+     * caller uses the target until it calls {@link #release()}; a replaced target
+     * is closed once its last user released it, so requests in flight on other
+     * threads complete.
+     */
+    public static ScimTarget acquire(ComponentModel model) {
+        var configVersion = getConfigVersion(model);
+        return targets.compute(model.getId(), (id, existing) -> {
+            var target = existing;
+            if (existing == null || existing.configVersion != configVersion) {
+                if (existing != null) {
+                    LOGGER.infof("Configuration of SCIM component %s changed, rebuilding client", id);
+                    existing.retire();
+                }
+                target = new ScimTarget(model);
+            }
+            // Counted inside compute, so a concurrent retire can't close it first
+            target.users.incrementAndGet();
+            return target;
+        });
+    }
+
+    public static void invalidate(String componentId) {
+        targets.computeIfPresent(componentId, (id, target) -> {
+            target.retire();
+            return null;
+        });
+    }
+
+    public static void invalidateAll() {
+        targets.keySet().forEach(ScimTarget::invalidate);
+    }
+
+    protected static int getConfigVersion(ComponentModel model) {
+        return model.getConfig().hashCode();
+    }
+
+    protected String BasicAuthentication(String username, String password) {
+        return  BasicAuth.builder()
+        .username(model.get(username))
+        .password(model.get(password))
+        .build()
+        .getAuthorizationHeaderValue();
+    }
+
+    protected ScimClientConfig genScimClientConfig() {
+        return ScimClientConfig.builder()
+        .httpHeaders(defaultHeaders)
+        .connectTimeout(30)
+        .requestTimeout(30)
+        .socketTimeout(30)
+        .expectedHttpResponseHeaders(expectedResponseHeaders)
+        .hostnameVerifier((s, sslSession) -> true)
+        .build();
+    }
+
+    protected String BearerAuthentication(String token) {
+        return "Bearer " + token ;
+    }
+
+    /**
+     * Returns the target's ServiceProviderConfig, fetched once and refreshed
+     * periodically. Returns null if the target doesn't expose it.
+     */
+    public ServiceProvider getServiceProvider() {
+        var now = Time.currentTimeMillis();
+        if (now - serviceProviderFetchedAt > SERVICE_PROVIDER_TTL) {
+            synchronized (this) {
+                if (now - serviceProviderFetchedAt > SERVICE_PROVIDER_TTL) {
+                    serviceProvider = fetchServiceProvider();
+                    serviceProviderFetchedAt = now;
+                }
+            }
+        }
+        return serviceProvider;
+    }
+
+    protected ServiceProvider fetchServiceProvider() {
+        var url = model.get("endpoint") + "/ServiceProviderConfig";
+        try {
+            var response = scimRequestBuilder.get(url, ServiceProvider.class).sendRequest();
+            if (response.isSuccess()) {
+                return response.getResource();
+            }
+            LOGGER.warnf("Failed to fetch %s: HTTP %d", url, response.getHttpStatus());
+        } catch (Exception e) {
+            LOGGER.warnf("Failed to fetch %s: %s", url, e.getMessage());
+        }
+        return null;
+    }
+
+    public boolean supportsFiltering() {
+        var config = getServiceProvider();
+        return config != null && config.getFilterConfig() != null && config.getFilterConfig().isSupported();
+    }
+
+    public boolean supportsPatch() {
+        var config = getServiceProvider();
+        return config != null && config.getPatchConfig() != null && config.getPatchConfig().isSupported();
+    }
+
+    public boolean supportsBulk() {
+        var config = getServiceProvider();
+        return config != null && config.getBulkConfig() != null && config.getBulkConfig().isSupported();
+    }
+
+    /**
+     * The target's limit on operations per /Bulk request, or 1 when its
+     * ServiceProviderConfig can't be fetched (anymore), so bulk requests stay
+     * valid until it can.
+     */
+    public int getBulkMaxOperations() {
+        var config = getServiceProvider();
+        if (config == null || config.getBulkConfig() == null) {
+            return 1;
+        }
+        return config.getBulkConfig().getMaxOperations();
+    }
+
+    /**
+     * The target's limit on the size of /Bulk requests, or 0 (no limit) when its
+     * ServiceProviderConfig can't be fetched.
+     */
+    public long getBulkMaxPayloadSize() {
+        var config = getServiceProvider();
+        if (config == null || config.getBulkConfig() == null) {
+            return 0;
+        }
+        return config.getBulkConfig().getMaxPayloadSize();
+    }
+
+    public ScimRequestBuilder getScimRequestBuilder() {
+        return scimRequestBuilder;
+    }
+
+    public RetryRegistry getRegistry() {
+        return registry;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public ScimThrottle getThrottle() {
+        return throttle;
+    }
+
+    public void release() {
+        if (users.decrementAndGet() == 0 && retired) {
+            close();
+        }
+    }
+
+    /**
+     * Marks the target as replaced, closing it right away when no client uses it.
+     */
+    protected void retire() {
+        retired = true;
+        if (users.get() == 0) {
+            close();
+        }
+    }
+
+    protected void close() {
+        if (closed.compareAndSet(false, true)) {
+            scimRequestBuilder.close();
+        }
+    }
+}
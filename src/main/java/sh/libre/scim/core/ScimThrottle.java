@@ -0,0 +1,201 @@
+package sh.libre.scim.core;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import jakarta.ws.rs.ProcessingException;
+
+import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
+
+import de.captaingoldfish.scim.sdk.client.response.ServerResponse;
+
+/**
+ * Throughput governor for one SCIM target, shared by every thread of the node
+ * sending to it:
+ * <ul>
+ * <li>an optional token bucket caps the request rate,</li>
+ * <li>a 429 or 503 pauses all requests until its Retry-After has passed,</li>
+ * <li>the number of requests in flight is adjusted additively up while the
+ * target answers quickly, halved on 429, 5xx and I/O errors, and lowered by one
+ * when latency climbs well above the lowest seen (AIMD).</li>
+ * </ul>
+ * Callers wait for a permit up to a given time and get a
+ * {@link ScimThrottledException} past it.
+ */
+public class ScimThrottle {
+    final private static Logger LOGGER = Logger.getLogger(ScimThrottle.class);
+    final private static long DECREASE_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+    final private static long DEFAULT_PAUSE = TimeUnit.SECONDS.toMillis(1);
+    final private static long MAX_PAUSE = TimeUnit.MINUTES.toMillis(10);
+    final private static int INITIAL_LIMIT = 4;
+
+    final private String name;
+    final private double rate;
+    final private int maxLimit;
+    private double tokens;
+    private long refilledAt;
+    private double limit;
+    private int inFlight;
+    private long pausedUntil;
+    private long decreasedAt;
+    private double latency;
+    private double baseline;
+
+    /**
+     * @param rate     requests per second, 0 for no limit
+     * @param maxLimit maximum number of requests in flight
+     */
+    public ScimThrottle(String name, int rate, int maxLimit) {
+        this.name = name;
+        this.rate = Math.max(0, rate);
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = Math.min(INITIAL_LIMIT, this.maxLimit);
+        this.tokens = this.rate;
+        this.refilledAt = Time.currentTimeMillis();
+    }
+
+    /**
+     * Sends the request once a permit is available, waiting at most maxWait
+     * milliseconds for it, and adjusts the limits from the outcome.
+     */
+    public <T> ServerResponse<T> execute(long maxWait, Supplier<ServerResponse<T>> request) {
+        acquire(maxWait);
+        var start = System.nanoTime();
+        ServerResponse<T> response;
+        try {
+            response = request.get();
+        } catch (ProcessingException e) {
+            release(-1, 0, null);
+            throw e;
+        } catch (RuntimeException e) {
+            // Not sent (e.g. open circuit breaker), nothing learnt about the target
+            release(0, 0, null);
+            throw e;
+        }
+        release(response.getHttpStatus(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                getRetryAfter(response));
+        return response;
+    }
+
+    protected synchronized void acquire(long maxWait) {
+        var deadline = Time.currentTimeMillis() + maxWait;
+        while (true) {
+            var now = Time.currentTimeMillis();
+            refill(now);
+            long wakeUp;
+            if (pausedUntil > now) {
+                wakeUp = pausedUntil;
+            } else if (inFlight >= (int) limit) {
+                // Woken up by release
+                wakeUp = deadline;
+            } else if (rate > 0 && tokens < 1) {
+                wakeUp = now + (long) Math.ceil((1 - tokens) / rate * 1000);
+            } else {
+                inFlight++;
+                if (rate > 0) {
+                    tokens -= 1;
+                }
+                return;
+            }
+            if (wakeUp > deadline || now >= deadline) {
+                throw new ScimThrottledException("SCIM target %s is throttled".formatted(name),
+                        Math.max(wakeUp, now + DEFAULT_PAUSE));
+            }
+            try {
+                wait(Math.max(1, wakeUp - now));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ScimThrottledException("Interrupted while waiting for SCIM target %s".formatted(name),
+                        now + DEFAULT_PAUSE);
+            }
+        }
+    }
+
+    /**
+     * @param status HTTP status of the response, -1 for an I/O error and 0 when
+     *               the request wasn't sent
+     */
+    protected synchronized void release(int status, long latencyMillis, Long retryAfter) {
+        inFlight--;
+        var now = Time.currentTimeMillis();
+        if (status == 429 || status == 503) {
+            var pause = Math.min(MAX_PAUSE, retryAfter != null ? retryAfter : DEFAULT_PAUSE);
+            if (now + pause > pausedUntil) {
+                LOGGER.infof("SCIM target %s asked to slow down (HTTP %d), pausing for %d ms", name, status, pause);
+                pausedUntil = now + pause;
+            }
+        }
+        if (status == 429 || status >= 500 || status < 0) {
+            decrease(now, limit / 2);
+        } else if (status > 0) {
+            latency = latency == 0 ? latencyMillis : 0.8 * latency + 0.2 * latencyMillis;
+            // The baseline follows the latency down right away and up slowly
+            baseline = baseline == 0 ? latency : Math.min(latency, baseline + (latency - baseline) * 0.01);
+            if (latency > 2 * baseline + 10) {
+                decrease(now, limit - 1);
+            } else if (inFlight + 1 >= (int) limit) {
+                // Only grow when the limit is actually in the way
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+        }
+        notifyAll();
+    }
+
+    protected void decrease(long now, double newLimit) {
+        if (now - decreasedAt < DECREASE_INTERVAL) {
+            return;
+        }
+        decreasedAt = now;
+        limit = Math.max(1, newLimit);
+        LOGGER.debugf("Lowering concurrency of SCIM target %s to %d", name, (int) limit);
+    }
+
+    protected void refill(long now) {
+        if (rate > 0) {
+            tokens = Math.min(rate, tokens + (now - refilledAt) * rate / 1000);
+        }
+        refilledAt = now;
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Parses the Retry-After header, in seconds or as an HTTP date, into
+     * milliseconds from now.
+     */
+    protected static Long getRetryAfter(ServerResponse<?> response) {
+        Map<String, String> headers = response.getHttpHeaders();
+        if (headers == null) {
+            return null;
+        }
+        String value = null;
+        for (var header : headers.entrySet()) {
+            if ("Retry-After".equalsIgnoreCase(header.getKey())) {
+                value = header.getValue();
+            }
+        }
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        value = value.trim();
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            // Not delay-seconds, try an HTTP date
+        }
+        try {
+            var date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0, date.toInstant().toEpochMilli() - Time.currentTimeMillis());
+        } catch (DateTimeParseException e) {
+            LOGGER.debugf("Ignoring invalid Retry-After header '%s'", value);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package sh.libre.scim.core;
+
+/**
+ * Thrown instead of sending a request when the target's throttle can't grant a
+ * permit in time. Nothing was sent, the request can be retried at
+ * {@link #getRetryAt()}.
+ */
+public class ScimThrottledException extends RuntimeException {
+    final private long retryAt;
+
+    public ScimThrottledException(String message, long retryAt) {
+        super(message);
+        this.retryAt = retryAt;
+    }
+
+    public long getRetryAt() {
+        return retryAt;
+    }
+}
@@ -3,11 +3,14 @@ package sh.libre.scim.core;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.Set;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import de.captaingoldfish.scim.sdk.client.ScimRequestBuilder;
@@ -24,6 +27,9 @@ import org.apache.commons.lang3.StringUtils;
 import org.jboss.logging.Logger;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.UserModel;
+import org.keycloak.storage.UserStorageProvider;
+
+import sh.libre.scim.storage.ScimStorageProviderFactory;
 
 public class UserAdapter extends Adapter<UserModel, User> {
 
@@ -137,6 +143,7 @@ public class UserAdapter extends Adapter<UserModel, User> {
 
         var roles = new String[rolesSet.size()];
         rolesSet.toArray(roles);
+        Arrays.sort(roles);
         setRoles(roles);
         this.skip = StringUtils.equals(user.getFirstAttribute("scim-skip"), "true");
     }
@@ -245,17 +252,165 @@ public class UserAdapter extends Adapter<UserModel, User> {
         return false;
     }
 
+    @Override
+    public Set<String> getExistingIds(Collection<String> ids) {
+        var existing = new HashSet<String>();
+        for (var chunk : partition(ids)) {
+            em.createQuery("select u.id from UserEntity u where u.realmId = :realmId and u.id in :ids", String.class)
+                    .setParameter("realmId", realmId)
+                    .setParameter("ids", chunk)
+                    .getResultStream()
+                    .forEach(existing::add);
+        }
+        if (hasUserFederation()) {
+            // Users of a federation provider that doesn't import them aren't in the database
+            var missing = ids.stream().filter(id -> !existing.contains(id)).toList();
+            missing.stream().filter(id -> session.users().getUserById(realm, id) != null).forEach(existing::add);
+        }
+        return existing;
+    }
+
+    @Override
+    public Map<String, String> findLocalMatches(List<User> resources) {
+        var usernames = new HashSet<String>();
+        var emails = new HashSet<String>();
+        for (var resource : resources) {
+            resource.getUserName().ifPresent(u -> usernames.add(u.toLowerCase()));
+            getPrimaryEmail(resource).ifPresent(e -> emails.add(e.toLowerCase()));
+        }
+        var byUsername = findUserIds("username", usernames);
+        var byEmail = findUserIds("email", emails);
+        var federated = hasUserFederation();
+        var matches = new HashMap<String, String>();
+        for (var resource : resources) {
+            var externalId = resource.getId().orElse(null);
+            if (externalId == null) {
+                continue;
+            }
+            var username = resource.getUserName().map(String::toLowerCase).orElse(null);
+            var email = getPrimaryEmail(resource).map(String::toLowerCase).orElse(null);
+            var sameUsernameUser = username == null ? null : byUsername.get(username);
+            var sameEmailUser = email == null ? null : byEmail.get(email);
+            if (sameUsernameUser == null && sameEmailUser == null && federated) {
+                try {
+                    var adapter = new UserAdapter(session, componentId);
+                    adapter.apply(resource);
+                    if (adapter.tryToMap()) {
+                        matches.put(externalId, adapter.getId());
+                    }
+                } catch (Exception e) {
+                    // Reported when the resource itself is imported
+                    LOGGER.debugf("Could not match remote user %s: %s", externalId, e.getMessage());
+                }
+                continue;
+            }
+            if (sameUsernameUser != null && sameEmailUser != null && !sameUsernameUser.equals(sameEmailUser)) {
+                LOGGER.warnf("found 2 possible users for remote user %s %s", username, email);
+                continue;
+            }
+            var match = sameUsernameUser != null ? sameUsernameUser : sameEmailUser;
+            if (match != null) {
+                matches.put(externalId, match);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Looks users up by username or email in a few queries. Values shared by
+     * several users are left out.
+     */
+    private Map<String, String> findUserIds(String attribute, Collection<String> values) {
+        var result = new HashMap<String, String>();
+        var duplicates = new HashSet<String>();
+        for (var chunk : partition(values)) {
+            em.createQuery("select u.%s, u.id from UserEntity u where u.realmId = :realmId and u.%s in :values"
+                    .formatted(attribute, attribute), Object[].class)
+                    .setParameter("realmId", realmId)
+                    .setParameter("values", chunk)
+                    .getResultStream()
+                    .forEach(row -> {
+                        if (result.putIfAbsent((String) row[0], (String) row[1]) != null) {
+                            duplicates.add((String) row[0]);
+                        }
+                    });
+        }
+        duplicates.forEach(result::remove);
+        return result;
+    }
+
+    private static Optional<String> getPrimaryEmail(User user) {
+        if (user.getEmails() == null || user.getEmails().isEmpty()) {
+            return Optional.empty();
+        }
+        return user.getEmails().get(0).getValue();
+    }
+
+    /**
+     * Whether users may come from another user storage provider than the
+     * database, e.g. LDAP.
+     */
+    private boolean hasUserFederation() {
+        return realm.getComponentsStream(realm.getId(), UserStorageProvider.class.getName())
+                .anyMatch(c -> !ScimStorageProviderFactory.ID.equals(c.getProviderId()));
+    }
+
     @Override
     public Stream<UserModel> getResourceStream() {
-        var filteredGroups = getFilteredGroups().collect(Collectors.toSet());
-        if (filteredGroups.isEmpty()) {
-            return this.session.users().searchForUserStream(this.session.getContext().getRealm(), Map.of(UserModel.ENABLED, "true"));
+        var pageSize = getPageSize();
+        var filter = getGroupFilter();
+        if (filter == null || !filter.isFiltered() || filter.getGroupIds().isEmpty()) {
+            return paged((first, max) -> this.session.users()
+                    .searchForUserStream(realm, Map.of(UserModel.ENABLED, "true"), first, max), pageSize);
+        }
+        // Users can be in several selected groups, only their ids are kept to skip repeats
+        Set<String> seen = new HashSet<>();
+        return filter.getGroupIds().stream()
+                .map(groupId -> session.groups().getGroupById(realm, groupId))
+                .filter(group -> group != null)
+                .flatMap(group -> paged((first, max) -> session.users()
+                        .getGroupMembersStream(realm, group, first, max), pageSize))
+                .filter(u -> u.isEnabled() && seen.add(u.getId()));
+    }
+
+    /**
+     * One range of the realm's enabled users, in a stable order, for sync shards.
+     * Users outside the sync scope are not filtered out.
+     */
+    public Stream<UserModel> getResourceRange(int first, int max) {
+        return this.session.users().searchForUserStream(realm, Map.of(UserModel.ENABLED, "true"), first, max);
+    }
+
+    @Override
+    public Stream<String> getResourceIdStream() {
+        return getResourceStream().map(UserModel::getId);
+    }
+
+    @Override
+    public Stream<String> getResourceIdStream(int first) {
+        var filter = getGroupFilter();
+        if (filter == null || !filter.isFiltered() || filter.getGroupIds().isEmpty()) {
+            // Start the paging at the position instead of reading and skipping what's before it
+            return paged((offset, max) -> getResourceRange(first + offset, max), getPageSize()).map(UserModel::getId);
+        }
+        return super.getResourceIdStream(first);
+    }
+
+    @Override
+    public UserModel getResourceById(String id) {
+        return session.users().getUserById(realm, id);
+    }
+
+    @Override
+    public boolean isInSyncScope(UserModel user) {
+        if (!user.isEnabled()) {
+            return false;
         }
-        Set<UserModel> users = new HashSet<>();
-        for (var group : filteredGroups) {
-            session.users().getGroupMembersStream(realm, group).forEach(users::add);
+        var filter = getGroupFilter();
+        if (filter == null || !filter.isFiltered() || filter.getGroupIds().isEmpty()) {
+            return true;
         }
-        return users.stream().filter(u -> u.isEnabled());
+        return filter.isUserInScope(user);
     }
 
     @Override
@@ -1,5 +1,6 @@
 package sh.libre.scim.event;
 
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.regex.*;
 
@@ -10,13 +11,15 @@ import org.keycloak.events.EventType;
 import org.keycloak.events.admin.AdminEvent;
 import org.keycloak.events.admin.OperationType;
 import org.keycloak.events.admin.ResourceType;
-import org.keycloak.models.GroupModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.UserModel;
+import org.keycloak.representations.idm.RoleRepresentation;
+import org.keycloak.util.JsonSerialization;
 
-import sh.libre.scim.core.GroupAdapter;
 import sh.libre.scim.core.ScimDispatcher;
-import sh.libre.scim.core.UserAdapter;
+import sh.libre.scim.core.ScimGroupFilter;
+import sh.libre.scim.core.ScimOperation;
+import sh.libre.scim.core.ScimOperation.Type;
 
 public class ScimEventListenerProvider implements EventListenerProvider {
     final Logger LOGGER = Logger.getLogger(ScimEventListenerProvider.class);
@@ -42,19 +45,18 @@ public class ScimEventListenerProvider implements EventListenerProvider {
         if (event.getType() == EventType.VERIFY_EMAIL) {
             var user = getUser(event.getUserId());
             if (user.isEmailVerified()){
-                dispatcher.run(ScimDispatcher.SCOPE_USER, client -> client.create(UserAdapter.class, user));
+                dispatcher.dispatch(ScimDispatcher.SCOPE_USER, Type.CREATE, ScimOperation.TYPE_USER, user.getId());
             }
         }
         if (event.getType() == EventType.UPDATE_EMAIL || event.getType() == EventType.UPDATE_PROFILE) {
-            var user = getUser(event.getUserId());
-            dispatcher.run(ScimDispatcher.SCOPE_USER, client -> client.replace(UserAdapter.class, user));
+            dispatcher.dispatch(ScimDispatcher.SCOPE_USER, Type.REPLACE, ScimOperation.TYPE_USER, event.getUserId());
         }
         // Delete events arrive after the user is already removed in Keycloak, so we cannot
         // fetch the user or rely on email verification. Delete directly by ID to avoid NPEs
         // and make sure the remote SCIM resource is cleaned up.
         if (event.getType() == EventType.DELETE_ACCOUNT) {
             LOGGER.infof("SCIM delete (user event) for %s", event.getUserId());
-            dispatcher.run(ScimDispatcher.SCOPE_USER, client -> client.delete(UserAdapter.class, event.getUserId()));
+            dispatcher.dispatch(ScimDispatcher.SCOPE_USER, Type.DELETE, ScimOperation.TYPE_USER, event.getUserId());
         }
     }
 
@@ -74,16 +76,16 @@ public class ScimEventListenerProvider implements EventListenerProvider {
             if (event.getOperationType() == OperationType.CREATE) {
                 var user = getUser(userId);
                 if (user.isEmailVerified()) {
-                    dispatcher.run(ScimDispatcher.SCOPE_USER, client -> client.create(UserAdapter.class, user));
+                    dispatcher.dispatch(ScimDispatcher.SCOPE_USER, Type.CREATE, ScimOperation.TYPE_USER, user.getId());
                     user.getGroupsStream().forEach(group -> {
-                        dispatcher.run(ScimDispatcher.SCOPE_GROUP, client -> client.replace(GroupAdapter.class, group));
+                        dispatcher.dispatch(ScimDispatcher.SCOPE_GROUP, Type.REPLACE, ScimOperation.TYPE_GROUP, group.getId());
                     });
                 }
             }
             if (event.getOperationType() == OperationType.UPDATE) {
                 var user = getUser(userId);
                 if (user.isEmailVerified()) {
-                    dispatcher.run(ScimDispatcher.SCOPE_USER, client -> client.replace(UserAdapter.class, user));
+                    dispatcher.dispatch(ScimDispatcher.SCOPE_USER, Type.REPLACE, ScimOperation.TYPE_USER, user.getId());
                 }
             }
             if (event.getOperationType() == OperationType.DELETE) {
@@ -95,55 +97,79 @@ public class ScimEventListenerProvider implements EventListenerProvider {
                 } else {
                     LOGGER.infof("SCIM delete (admin event) for %s: user still present, emailVerified=%s", userId, user.isEmailVerified());
                 }
-                dispatcher.run(ScimDispatcher.SCOPE_USER, client -> client.delete(UserAdapter.class, userId));
+                dispatcher.dispatch(ScimDispatcher.SCOPE_USER, Type.DELETE, ScimOperation.TYPE_USER, userId);
             }
         }
         if (event.getResourceType() == ResourceType.GROUP) {
             var groupId = matcher.group(1);
             LOGGER.infof("group %s %s", groupId, event.getOperationType());
+            // Names and hierarchy feed the group filters
+            ScimGroupFilter.invalidateRealm(session, event.getRealmId());
             if (event.getOperationType() == OperationType.CREATE) {
-                var group = getGroup(groupId);
-                dispatcher.run(ScimDispatcher.SCOPE_GROUP, client -> client.create(GroupAdapter.class, group));
+                dispatcher.dispatch(ScimDispatcher.SCOPE_GROUP, Type.CREATE, ScimOperation.TYPE_GROUP, groupId);
             }
             if (event.getOperationType() == OperationType.UPDATE) {
-                var group = getGroup(groupId);
-                dispatcher.run(ScimDispatcher.SCOPE_GROUP, client -> client.replace(GroupAdapter.class, group));
+                dispatcher.dispatch(ScimDispatcher.SCOPE_GROUP, Type.REPLACE, ScimOperation.TYPE_GROUP, groupId);
             }
             if (event.getOperationType() == OperationType.DELETE) {
-                dispatcher.run(ScimDispatcher.SCOPE_GROUP,
-                        client -> client.delete(GroupAdapter.class, groupId));
+                dispatcher.dispatch(ScimDispatcher.SCOPE_GROUP, Type.DELETE, ScimOperation.TYPE_GROUP, groupId);
             }
         }
         if (event.getResourceType() == ResourceType.GROUP_MEMBERSHIP) {
             var userId = matcher.group(1);
             var groupId = matcher.group(2);
             LOGGER.infof("%s %s from %s", event.getOperationType(), userId, groupId);
-            var group = getGroup(groupId);
-            dispatcher.run(ScimDispatcher.SCOPE_GROUP, client -> client.replace(GroupAdapter.class, group));
-            var user = getUser(userId);
-            dispatcher.run(ScimDispatcher.SCOPE_USER, client -> client.replace(UserAdapter.class, user));
+            if (event.getOperationType() == OperationType.CREATE) {
+                dispatcher.dispatch(ScimDispatcher.SCOPE_GROUP, Type.MEMBER_ADD, ScimOperation.TYPE_GROUP, groupId, userId);
+            } else if (event.getOperationType() == OperationType.DELETE) {
+                dispatcher.dispatch(ScimDispatcher.SCOPE_GROUP, Type.MEMBER_REMOVE, ScimOperation.TYPE_GROUP, groupId, userId);
+            } else {
+                dispatcher.dispatch(ScimDispatcher.SCOPE_GROUP, Type.REPLACE, ScimOperation.TYPE_GROUP, groupId);
+            }
+            dispatcher.dispatch(ScimDispatcher.SCOPE_USER, Type.REPLACE, ScimOperation.TYPE_USER, userId);
         }
         if (event.getResourceType() == ResourceType.REALM_ROLE_MAPPING) {
             var type = matcher.group(1);
             var id = matcher.group(2);
             LOGGER.infof("%s %s %s roles", event.getOperationType(), type, id);
+            if (!touchesScimRoles(event)) {
+                LOGGER.debugf("None of the roles are exported to SCIM, ignoring");
+                return;
+            }
             if ("users".equals(type)) {
-                var user = getUser(id);
-                dispatcher.run(ScimDispatcher.SCOPE_USER, client -> client.replace(UserAdapter.class, user));
+                dispatcher.dispatch(ScimDispatcher.SCOPE_USER, Type.REPLACE, ScimOperation.TYPE_USER, id);
             } else if ("groups".equals(type)) {
-                var group = getGroup(id);
-                session.users().getGroupMembersStream(session.getContext().getRealm(), group).forEach(user -> {
-                    dispatcher.run(ScimDispatcher.SCOPE_USER, client -> client.replace(UserAdapter.class, user));
-                });
+                // One operation for the whole group, members are walked in the background
+                dispatcher.dispatch(ScimDispatcher.SCOPE_USER, Type.REPLACE_MEMBERS, ScimOperation.TYPE_GROUP, id);
             }
         }
     }
 
-    private UserModel getUser(String id) {
-        return session.users().getUserById(session.getContext().getRealm(), id);
+    /**
+     * Tells whether the role mapping change can alter the SCIM roles of a user,
+     * i.e. whether one of the mapped roles has the scim attribute. Assumes it can
+     * when the event doesn't carry the roles.
+     */
+    private boolean touchesScimRoles(AdminEvent event) {
+        if (event.getRepresentation() == null) {
+            return true;
+        }
+        try {
+            var realm = session.getContext().getRealm();
+            var roles = JsonSerialization.readValue(event.getRepresentation(), RoleRepresentation[].class);
+            for (var role : roles) {
+                var model = role.getId() == null ? null : realm.getRoleById(role.getId());
+                if (model == null || "true".equals(model.getFirstAttribute("scim"))) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
     }
 
-    private GroupModel getGroup(String id) {
-        return session.groups().getGroupById(session.getContext().getRealm(), id);
+    private UserModel getUser(String id) {
+        return session.users().getUserById(session.getContext().getRealm(), id);
     }
 }
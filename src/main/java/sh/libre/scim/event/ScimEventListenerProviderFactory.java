@@ -1,12 +1,25 @@
 package sh.libre.scim.event;
 
+import java.util.concurrent.TimeUnit;
+
 import org.keycloak.Config.Scope;
+import org.keycloak.cluster.ClusterProvider;
 import org.keycloak.events.EventListenerProvider;
 import org.keycloak.events.EventListenerProviderFactory;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import sh.libre.scim.core.ScimDistributedSync;
+import sh.libre.scim.core.ScimGroupFilter;
+import sh.libre.scim.core.ScimPropagationExecutor;
 
 public class ScimEventListenerProviderFactory implements EventListenerProviderFactory {
+    private int workers;
+    private long outboxPollInterval;
+    private long outboxRetention;
+    private long coalesceWindow;
+    private int outboxMaxAttempts;
 
     @Override
     public EventListenerProvider create(KeycloakSession session) {
@@ -15,14 +28,30 @@ public class ScimEventListenerProviderFactory implements EventListenerProviderFa
 
     @Override
     public void init(Scope config) {
+        workers = config.getInt("workers", 4);
+        outboxPollInterval = TimeUnit.SECONDS.toMillis(config.getLong("outboxPollInterval", 30L));
+        outboxRetention = TimeUnit.HOURS.toMillis(config.getLong("outboxRetention", 24L));
+        coalesceWindow = config.getLong("coalesceWindow", 1000L);
+        outboxMaxAttempts = config.getInt("outboxMaxAttempts", 20);
     }
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
+        ScimPropagationExecutor.init(factory, workers, outboxPollInterval, outboxRetention, coalesceWindow,
+                outboxMaxAttempts);
+        KeycloakModelUtils.runJobInTransaction(factory, session -> {
+            var cluster = session.getProvider(ClusterProvider.class);
+            if (cluster != null) {
+                ScimGroupFilter.registerClusterListener(cluster);
+                ScimDistributedSync.registerClusterListener(factory, cluster);
+            }
+        });
     }
 
     @Override
     public void close() {
+        ScimPropagationExecutor.shutdown();
+        ScimDistributedSync.shutdown();
     }
 
     @Override
@@ -0,0 +1,209 @@
+package sh.libre.scim.jpa;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jboss.logging.Logger;
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.models.AbstractKeycloakTransaction;
+import org.keycloak.models.KeycloakSession;
+
+/**
+ * Node-local cache of local id to SCIM id mappings, one bounded LRU region per
+ * realm, component and resource type. Mappings practically never change once
+ * created, so lookups are answered from memory and only misses reach the
+ * database. Entries changed by a transaction are evicted when it completes, and
+ * other cluster nodes are told to drop the entries they hold. Every eviction
+ * moves its region to a new generation, and mappings read from the database are
+ * only cached when no eviction happened since the read started, so a read that
+ * raced a commit can't put the old mapping back.
+ */
+public class ScimMappingCache {
+    final private static Logger LOGGER = Logger.getLogger(ScimMappingCache.class);
+    final public static String INVALIDATION_EVENT = "scim-mapping-invalidation";
+    final private static String PENDING_ATTRIBUTE = ScimMappingCache.class.getName() + ".pending";
+    final private static Map<String, Region> regions = new ConcurrentHashMap<>();
+    private static volatile int maxEntries = 10000;
+    final private static AtomicLong generations = new AtomicLong();
+
+    public static class InvalidationEvent implements ClusterEvent {
+        final private HashMap<String, HashSet<String>> ids;
+
+        public InvalidationEvent(HashMap<String, HashSet<String>> ids) {
+            this.ids = ids;
+        }
+
+        public Map<String, HashSet<String>> getIds() {
+            return ids;
+        }
+    }
+
+    protected static class Region {
+        final private LinkedHashMap<String, String> externalIds;
+        final private LinkedHashMap<String, String> ids;
+        private long generation = generations.incrementAndGet();
+
+        protected Region(int maxEntries) {
+            this.externalIds = lru(maxEntries);
+            this.ids = lru(maxEntries);
+        }
+
+        protected synchronized long getGeneration() {
+            return generation;
+        }
+
+        private static LinkedHashMap<String, String> lru(int maxEntries) {
+            return new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > maxEntries;
+                }
+            };
+        }
+
+        protected synchronized String getExternalId(String id) {
+            return externalIds.get(id);
+        }
+
+        protected synchronized String getId(String externalId) {
+            return ids.get(externalId);
+        }
+
+        protected synchronized void put(String id, String externalId, long generation) {
+            if (generation != this.generation) {
+                return;
+            }
+            var previous = externalIds.put(id, externalId);
+            if (previous != null && !previous.equals(externalId)) {
+                ids.remove(previous);
+            }
+            ids.put(externalId, id);
+        }
+
+        protected synchronized void remove(String id) {
+            generation = generations.incrementAndGet();
+            var externalId = externalIds.remove(id);
+            if (externalId != null) {
+                ids.remove(externalId);
+            }
+        }
+    }
+
+    public static void setMaxEntries(int maxEntries) {
+        ScimMappingCache.maxEntries = Math.max(1, maxEntries);
+        regions.clear();
+    }
+
+    protected static String regionKey(String realmId, String componentId, String type) {
+        return realmId + "/" + componentId + "/" + type;
+    }
+
+    protected static Region region(String realmId, String componentId, String type) {
+        return regions.computeIfAbsent(regionKey(realmId, componentId, type), k -> new Region(maxEntries));
+    }
+
+    public static String getExternalId(String realmId, String componentId, String type, String id) {
+        var region = regions.get(regionKey(realmId, componentId, type));
+        return region == null ? null : region.getExternalId(id);
+    }
+
+    public static String getId(String realmId, String componentId, String type, String externalId) {
+        var region = regions.get(regionKey(realmId, componentId, type));
+        return region == null ? null : region.getId(externalId);
+    }
+
+    /**
+     * The current generation of the region, to take before reading mappings from
+     * the database and hand to {@link #put(ScimResource, long)}.
+     */
+    public static long generation(String realmId, String componentId, String type) {
+        return region(realmId, componentId, type).getGeneration();
+    }
+
+    /**
+     * Caches a mapping read from the database, unless the region was evicted from
+     * since the generation was taken.
+     */
+    public static void put(ScimResource mapping, long generation) {
+        region(mapping.getRealmId(), mapping.getComponentId(), mapping.getType())
+                .put(mapping.getId(), mapping.getExternalId(), generation);
+    }
+
+    /**
+     * Records that the mapping was created, changed or removed in the current
+     * transaction.
+     */
+    public static void changed(KeycloakSession session, ScimResource mapping) {
+        // Nothing is cached before commit, a rollback must not leave a phantom mapping
+        evict(mapping.getRealmId(), mapping.getComponentId(), mapping.getType(), mapping.getId());
+        pending(session).computeIfAbsent(regionKey(mapping.getRealmId(), mapping.getComponentId(), mapping.getType()),
+                k -> new HashSet<>()).add(mapping.getId());
+    }
+
+    public static void invalidateComponent(String componentId) {
+        regions.keySet().removeIf(key -> key.contains("/" + componentId + "/"));
+    }
+
+    protected static void evict(String realmId, String componentId, String type, String id) {
+        var region = regions.get(regionKey(realmId, componentId, type));
+        if (region != null) {
+            region.remove(id);
+        }
+    }
+
+    protected static void evict(Map<String, ? extends Set<String>> ids) {
+        ids.forEach((key, regionIds) -> {
+            var region = regions.get(key);
+            if (region != null) {
+                regionIds.forEach(region::remove);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static HashMap<String, HashSet<String>> pending(KeycloakSession session) {
+        var pending = (HashMap<String, HashSet<String>>) session.getAttribute(PENDING_ATTRIBUTE);
+        if (pending == null) {
+            var changes = new HashMap<String, HashSet<String>>();
+            session.setAttribute(PENDING_ATTRIBUTE, changes);
+            session.getTransactionManager().enlistAfterCompletion(new AbstractKeycloakTransaction() {
+                @Override
+                protected void commitImpl() {
+                    // Entries may have been read back between the change and the commit
+                    evict(changes);
+                    var cluster = session.getProvider(ClusterProvider.class);
+                    if (cluster != null) {
+                        cluster.notify(INVALIDATION_EVENT, new InvalidationEvent(changes), true,
+                                ClusterProvider.DCNotify.ALL_DCS);
+                    }
+                }
+
+                @Override
+                protected void rollbackImpl() {
+                    evict(changes);
+                }
+            });
+            pending = changes;
+        }
+        return pending;
+    }
+
+    /**
+     * Subscribes to invalidations sent by the other cluster nodes.
+     */
+    public static void registerClusterListener(ClusterProvider cluster) {
+        cluster.registerListener(INVALIDATION_EVENT, event -> {
+            if (event instanceof InvalidationEvent) {
+                var ids = ((InvalidationEvent) event).getIds();
+                LOGGER.debugf("Evicting SCIM mappings changed on another node: %s", ids);
+                evict(ids);
+            }
+        });
+    }
+}
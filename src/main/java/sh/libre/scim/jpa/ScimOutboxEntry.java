@@ -0,0 +1,169 @@
+package sh.libre.scim.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+
+@Entity
+@Table(name = "SCIM_OUTBOX")
+@NamedQueries({
+                @NamedQuery(name = "findPendingOutboxEntries", query = "from ScimOutboxEntry where status = 'PENDING' and nextAttempt <= :now order by createdTimestamp"),
+                @NamedQuery(name = "findPendingOutboxEntriesForResource", query = "from ScimOutboxEntry where status = 'PENDING' and componentId = :componentId and resourceType = :resourceType and resourceId = :resourceId and nextAttempt <= :until order by createdTimestamp"),
+                @NamedQuery(name = "findOutboxEntriesSince", query = "from ScimOutboxEntry where componentId = :componentId and createdTimestamp >= :since"),
+                @NamedQuery(name = "claimOutboxEntry", query = "update ScimOutboxEntry set nextAttempt = :leaseUntil where entryId = :entryId and status = 'PENDING' and nextAttempt <= :now"),
+                @NamedQuery(name = "renewOutboxEntries", query = "update ScimOutboxEntry set nextAttempt = :leaseUntil where entryId in :entryIds and status = 'PENDING'"),
+                @NamedQuery(name = "replayDeadOutboxEntries", query = "update ScimOutboxEntry set status = 'PENDING', attempts = 0, nextAttempt = :now where status = 'DEAD' and componentId = :componentId"),
+                @NamedQuery(name = "purgeDeliveredOutboxEntries", query = "delete from ScimOutboxEntry where status = 'DELIVERED' and deliveredTimestamp < :before")})
+public class ScimOutboxEntry {
+        public static final String STATUS_PENDING = "PENDING";
+        public static final String STATUS_DELIVERED = "DELIVERED";
+        public static final String STATUS_DEAD = "DEAD";
+
+        @Id
+        @Column(name = "ID", nullable = false)
+        private String entryId;
+
+        @Column(name = "REALM_ID", nullable = false)
+        private String realmId;
+
+        @Column(name = "COMPONENT_ID", nullable = false)
+        private String componentId;
+
+        @Column(name = "RESOURCE_TYPE", nullable = false)
+        private String resourceType;
+
+        @Column(name = "RESOURCE_ID", nullable = false)
+        private String resourceId;
+
+        @Column(name = "OPERATION", nullable = false)
+        private String operation;
+
+        @Column(name = "MEMBER_ID")
+        private String memberId;
+
+        @Column(name = "STATUS", nullable = false)
+        private String status;
+
+        @Column(name = "ATTEMPTS", nullable = false)
+        private int attempts;
+
+        @Column(name = "CREATED_TIMESTAMP", nullable = false)
+        private long createdTimestamp;
+
+        @Column(name = "NEXT_ATTEMPT", nullable = false)
+        private long nextAttempt;
+
+        @Column(name = "DELIVERED_TIMESTAMP")
+        private Long deliveredTimestamp;
+
+        @Column(name = "LAST_ERROR")
+        private String lastError;
+
+        public String getEntryId() {
+                return entryId;
+        }
+
+        public void setEntryId(String entryId) {
+                this.entryId = entryId;
+        }
+
+        public String getRealmId() {
+                return realmId;
+        }
+
+        public void setRealmId(String realmId) {
+                this.realmId = realmId;
+        }
+
+        public String getComponentId() {
+                return componentId;
+        }
+
+        public void setComponentId(String componentId) {
+                this.componentId = componentId;
+        }
+
+        public String getResourceType() {
+                return resourceType;
+        }
+
+        public void setResourceType(String resourceType) {
+                this.resourceType = resourceType;
+        }
+
+        public String getResourceId() {
+                return resourceId;
+        }
+
+        public void setResourceId(String resourceId) {
+                this.resourceId = resourceId;
+        }
+
+        public String getOperation() {
+                return operation;
+        }
+
+        public void setOperation(String operation) {
+                this.operation = operation;
+        }
+
+        public String getMemberId() {
+                return memberId;
+        }
+
+        public void setMemberId(String memberId) {
+                this.memberId = memberId;
+        }
+
+        public String getStatus() {
+                return status;
+        }
+
+        public void setStatus(String status) {
+                this.status = status;
+        }
+
+        public int getAttempts() {
+                return attempts;
+        }
+
+        public void setAttempts(int attempts) {
+                this.attempts = attempts;
+        }
+
+        public long getCreatedTimestamp() {
+                return createdTimestamp;
+        }
+
+        public void setCreatedTimestamp(long createdTimestamp) {
+                this.createdTimestamp = createdTimestamp;
+        }
+
+        public long getNextAttempt() {
+                return nextAttempt;
+        }
+
+        public void setNextAttempt(long nextAttempt) {
+                this.nextAttempt = nextAttempt;
+        }
+
+        public Long getDeliveredTimestamp() {
+                return deliveredTimestamp;
+        }
+
+        public void setDeliveredTimestamp(Long deliveredTimestamp) {
+                this.deliveredTimestamp = deliveredTimestamp;
+        }
+
+        public String getLastError() {
+                return lastError;
+        }
+
+        public void setLastError(String lastError) {
+                this.lastError = lastError;
+        }
+
+}
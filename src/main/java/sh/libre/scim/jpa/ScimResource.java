@@ -13,7 +13,10 @@ import jakarta.persistence.Table;
 @Table(name = "SCIM_RESOURCE")
 @NamedQueries({
                 @NamedQuery(name = "findById", query = "from ScimResource where realmId = :realmId and componentId = :componentId and type = :type and id = :id"),
-                @NamedQuery(name = "findByExternalId", query = "from ScimResource where realmId = :realmId and componentId = :componentId and type = :type and externalId = :id")})
+                @NamedQuery(name = "findByExternalId", query = "from ScimResource where realmId = :realmId and componentId = :componentId and type = :type and externalId = :id"),
+                @NamedQuery(name = "findByIds", query = "from ScimResource where realmId = :realmId and componentId = :componentId and type = :type and id in :ids"),
+                @NamedQuery(name = "findByExternalIds", query = "from ScimResource where realmId = :realmId and componentId = :componentId and type = :type and externalId in :ids"),
+                @NamedQuery(name = "findMappingIds", query = "select externalId, id from ScimResource where realmId = :realmId and componentId = :componentId and type = :type order by id")})
 public class ScimResource {
         @Id
         @Column(name = "ID", nullable = false)
@@ -31,10 +34,12 @@ public class ScimResource {
         @Column(name = "TYPE", nullable = false)
         private String type;
 
-        @Id
         @Column(name = "EXTERNAL_ID", nullable = false)
         private String externalId;
 
+        @Column(name = "CONTENT_HASH")
+        private String contentHash;
+
         public String getId() {
                 return id;
         }
@@ -67,6 +72,14 @@ public class ScimResource {
                 this.externalId = externalId;
         }
 
+        public String getContentHash() {
+                return contentHash;
+        }
+
+        public void setContentHash(String contentHash) {
+                this.contentHash = contentHash;
+        }
+
         public String getType() {
                 return type;
         }
@@ -1,10 +1,12 @@
 package sh.libre.scim.jpa;
 
 import org.keycloak.Config.Scope;
+import org.keycloak.cluster.ClusterProvider;
 import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
 import org.keycloak.connections.jpa.entityprovider.JpaEntityProviderFactory;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
 
 public class ScimResourceProviderFactory implements JpaEntityProviderFactory {
     final static String ID ="scim-resource";
@@ -24,9 +26,16 @@ public class ScimResourceProviderFactory implements JpaEntityProviderFactory {
 
     @Override
     public void init(Scope scope) {
+        ScimMappingCache.setMaxEntries(scope.getInt("mappingCacheSize", 10000));
     }
 
     @Override
     public void postInit(KeycloakSessionFactory sessionFactory) {
+        KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+            var cluster = session.getProvider(ClusterProvider.class);
+            if (cluster != null) {
+                ScimMappingCache.registerClusterListener(cluster);
+            }
+        });
     }
 }
@@ -0,0 +1,62 @@
+package sh.libre.scim.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+
+@Entity
+@Table(name = "SCIM_SYNC_LOCK")
+@NamedQueries({
+                @NamedQuery(name = "takeExpiredSyncLock", query = "update ScimSyncLock set owner = :owner, leaseUntil = :leaseUntil where componentId = :componentId and leaseUntil < :now"),
+                @NamedQuery(name = "renewSyncLock", query = "update ScimSyncLock set leaseUntil = :leaseUntil where componentId = :componentId and owner = :owner"),
+                @NamedQuery(name = "releaseSyncLock", query = "delete from ScimSyncLock where componentId = :componentId and owner = :owner")})
+public class ScimSyncLock {
+        @Id
+        @Column(name = "COMPONENT_ID", nullable = false)
+        private String componentId;
+
+        @Column(name = "REALM_ID", nullable = false)
+        private String realmId;
+
+        @Column(name = "OWNER", nullable = false)
+        private String owner;
+
+        @Column(name = "LEASE_UNTIL", nullable = false)
+        private long leaseUntil;
+
+        public String getComponentId() {
+                return componentId;
+        }
+
+        public void setComponentId(String componentId) {
+                this.componentId = componentId;
+        }
+
+        public String getRealmId() {
+                return realmId;
+        }
+
+        public void setRealmId(String realmId) {
+                this.realmId = realmId;
+        }
+
+        public String getOwner() {
+                return owner;
+        }
+
+        public void setOwner(String owner) {
+                this.owner = owner;
+        }
+
+        public long getLeaseUntil() {
+                return leaseUntil;
+        }
+
+        public void setLeaseUntil(long leaseUntil) {
+                this.leaseUntil = leaseUntil;
+        }
+
+}
@@ -0,0 +1,172 @@
+package sh.libre.scim.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.IdClass;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+
+@Entity
+@IdClass(ScimSyncShardId.class)
+@Table(name = "SCIM_SYNC_SHARD")
+@NamedQueries({
+                @NamedQuery(name = "findSyncShards", query = "from ScimSyncShard where runId = :runId order by shard"),
+                @NamedQuery(name = "findClaimableSyncShards", query = "from ScimSyncShard where runId = :runId and (status = 'PENDING' or (status = 'RUNNING' and leaseUntil < :now)) order by shard"),
+                @NamedQuery(name = "claimSyncShard", query = "update ScimSyncShard set status = 'RUNNING', owner = :owner, leaseUntil = :leaseUntil where runId = :runId and shard = :shard and (status = 'PENDING' or (status = 'RUNNING' and leaseUntil < :now))"),
+                @NamedQuery(name = "findSyncShardRuns", query = "select distinct runId from ScimSyncShard where componentId = :componentId"),
+                @NamedQuery(name = "renewSyncShard", query = "update ScimSyncShard set leaseUntil = :leaseUntil where runId = :runId and shard = :shard and owner = :owner and status = 'RUNNING'"),
+                @NamedQuery(name = "deleteSyncShardsOfComponent", query = "delete from ScimSyncShard where componentId = :componentId and (status <> 'RUNNING' or leaseUntil < :now)"),
+                @NamedQuery(name = "deleteSyncShards", query = "delete from ScimSyncShard where runId = :runId")})
+public class ScimSyncShard {
+        public static final String STATUS_PENDING = "PENDING";
+        public static final String STATUS_RUNNING = "RUNNING";
+        public static final String STATUS_DONE = "DONE";
+
+        @Id
+        @Column(name = "RUN_ID", nullable = false)
+        private String runId;
+
+        @Id
+        @Column(name = "SHARD", nullable = false)
+        private int shard;
+
+        @Column(name = "REALM_ID", nullable = false)
+        private String realmId;
+
+        @Column(name = "COMPONENT_ID", nullable = false)
+        private String componentId;
+
+        @Column(name = "STATUS", nullable = false)
+        private String status;
+
+        @Column(name = "FIRST_RESULT", nullable = false)
+        private int firstResult;
+
+        @Column(name = "MAX_RESULTS", nullable = false)
+        private int maxResults;
+
+        @Column(name = "OWNER")
+        private String owner;
+
+        @Column(name = "LEASE_UNTIL", nullable = false)
+        private long leaseUntil;
+
+        @Column(name = "ADDED", nullable = false)
+        private int added;
+
+        @Column(name = "UPDATED", nullable = false)
+        private int updated;
+
+        @Column(name = "REMOVED", nullable = false)
+        private int removed;
+
+        @Column(name = "FAILED", nullable = false)
+        private int failed;
+
+        public String getRunId() {
+                return runId;
+        }
+
+        public void setRunId(String runId) {
+                this.runId = runId;
+        }
+
+        public int getShard() {
+                return shard;
+        }
+
+        public void setShard(int shard) {
+                this.shard = shard;
+        }
+
+        public String getRealmId() {
+                return realmId;
+        }
+
+        public void setRealmId(String realmId) {
+                this.realmId = realmId;
+        }
+
+        public String getComponentId() {
+                return componentId;
+        }
+
+        public void setComponentId(String componentId) {
+                this.componentId = componentId;
+        }
+
+        public String getStatus() {
+                return status;
+        }
+
+        public void setStatus(String status) {
+                this.status = status;
+        }
+
+        public int getFirstResult() {
+                return firstResult;
+        }
+
+        public void setFirstResult(int firstResult) {
+                this.firstResult = firstResult;
+        }
+
+        public int getMaxResults() {
+                return maxResults;
+        }
+
+        public void setMaxResults(int maxResults) {
+                this.maxResults = maxResults;
+        }
+
+        public String getOwner() {
+                return owner;
+        }
+
+        public void setOwner(String owner) {
+                this.owner = owner;
+        }
+
+        public long getLeaseUntil() {
+                return leaseUntil;
+        }
+
+        public void setLeaseUntil(long leaseUntil) {
+                this.leaseUntil = leaseUntil;
+        }
+
+        public int getAdded() {
+                return added;
+        }
+
+        public void setAdded(int added) {
+                this.added = added;
+        }
+
+        public int getUpdated() {
+                return updated;
+        }
+
+        public void setUpdated(int updated) {
+                this.updated = updated;
+        }
+
+        public int getRemoved() {
+                return removed;
+        }
+
+        public void setRemoved(int removed) {
+                this.removed = removed;
+        }
+
+        public int getFailed() {
+                return failed;
+        }
+
+        public void setFailed(int failed) {
+                this.failed = failed;
+        }
+
+}
@@ -0,0 +1,51 @@
+package sh.libre.scim.jpa;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+public class ScimSyncShardId implements Serializable {
+    private String runId;
+    private int shard;
+
+    public ScimSyncShardId() {
+    }
+
+    public ScimSyncShardId(String runId, int shard) {
+        this.setRunId(runId);
+        this.setShard(shard);
+    }
+
+    public String getRunId() {
+        return runId;
+    }
+
+    public void setRunId(String runId) {
+        this.runId = runId;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public void setShard(int shard) {
+        this.shard = shard;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof ScimSyncShardId)) {
+            return false;
+        }
+        var o = (ScimSyncShardId) other;
+        return Objects.equals(o.runId, runId)
+                && o.shard == shard;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(runId, shard);
+    }
+}
@@ -0,0 +1,147 @@
+package sh.libre.scim.jpa;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.IdClass;
+import jakarta.persistence.Table;
+
+@Entity
+@IdClass(ScimSyncStateId.class)
+@Table(name = "SCIM_SYNC_STATE")
+public class ScimSyncState {
+        @Id
+        @Column(name = "COMPONENT_ID", nullable = false)
+        private String componentId;
+
+        @Id
+        @Column(name = "TYPE", nullable = false)
+        private String type;
+
+        @Column(name = "REALM_ID", nullable = false)
+        private String realmId;
+
+        @Column(name = "IMPORT_WATERMARK")
+        private String importWatermark;
+
+        @Column(name = "LAST_FULL_IMPORT")
+        private Long lastFullImport;
+
+        @Column(name = "SYNC_PHASE")
+        private String syncPhase;
+
+        @Column(name = "SYNC_CURSOR")
+        private Long syncCursor;
+
+        @Column(name = "SYNC_STARTED")
+        private Long syncStarted;
+
+        @Column(name = "SYNC_ADDED")
+        private Integer syncAdded;
+
+        @Column(name = "SYNC_UPDATED")
+        private Integer syncUpdated;
+
+        @Column(name = "SYNC_REMOVED")
+        private Integer syncRemoved;
+
+        @Column(name = "SYNC_FAILED")
+        private Integer syncFailed;
+
+        public String getComponentId() {
+                return componentId;
+        }
+
+        public void setComponentId(String componentId) {
+                this.componentId = componentId;
+        }
+
+        public String getType() {
+                return type;
+        }
+
+        public void setType(String type) {
+                this.type = type;
+        }
+
+        public String getRealmId() {
+                return realmId;
+        }
+
+        public void setRealmId(String realmId) {
+                this.realmId = realmId;
+        }
+
+        public String getImportWatermark() {
+                return importWatermark;
+        }
+
+        public void setImportWatermark(String importWatermark) {
+                this.importWatermark = importWatermark;
+        }
+
+        public Long getLastFullImport() {
+                return lastFullImport;
+        }
+
+        public void setLastFullImport(Long lastFullImport) {
+                this.lastFullImport = lastFullImport;
+        }
+
+        public String getSyncPhase() {
+                return syncPhase;
+        }
+
+        public void setSyncPhase(String syncPhase) {
+                this.syncPhase = syncPhase;
+        }
+
+        public Long getSyncCursor() {
+                return syncCursor;
+        }
+
+        public void setSyncCursor(Long syncCursor) {
+                this.syncCursor = syncCursor;
+        }
+
+        public Long getSyncStarted() {
+                return syncStarted;
+        }
+
+        public void setSyncStarted(Long syncStarted) {
+                this.syncStarted = syncStarted;
+        }
+
+        public Integer getSyncAdded() {
+                return syncAdded;
+        }
+
+        public void setSyncAdded(Integer syncAdded) {
+                this.syncAdded = syncAdded;
+        }
+
+        public Integer getSyncUpdated() {
+                return syncUpdated;
+        }
+
+        public void setSyncUpdated(Integer syncUpdated) {
+                this.syncUpdated = syncUpdated;
+        }
+
+        public Integer getSyncRemoved() {
+                return syncRemoved;
+        }
+
+        public void setSyncRemoved(Integer syncRemoved) {
+                this.syncRemoved = syncRemoved;
+        }
+
+        public Integer getSyncFailed() {
+                return syncFailed;
+        }
+
+        public void setSyncFailed(Integer syncFailed) {
+                this.syncFailed = syncFailed;
+        }
+
+}
@@ -0,0 +1,51 @@
+package sh.libre.scim.jpa;
+
+import java.io.Serializable;
+import java.util.Objects;
+
+public class ScimSyncStateId implements Serializable {
+    private String componentId;
+    private String type;
+
+    public ScimSyncStateId() {
+    }
+
+    public ScimSyncStateId(String componentId, String type) {
+        this.setComponentId(componentId);
+        this.setType(type);
+    }
+
+    public String getComponentId() {
+        return componentId;
+    }
+
+    public void setComponentId(String componentId) {
+        this.componentId = componentId;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public void setType(String type) {
+        this.type = type;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof ScimSyncStateId)) {
+            return false;
+        }
+        var o = (ScimSyncStateId) other;
+        return Objects.equals(o.componentId, componentId)
+                && Objects.equals(o.type, type);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(componentId, type);
+    }
+}
@@ -2,14 +2,17 @@ package sh.libre.scim.storage;
 
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import jakarta.ws.rs.core.MediaType;
 
 import org.jboss.logging.Logger;
+import org.keycloak.common.util.Time;
 import org.keycloak.component.ComponentModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.KeycloakSessionTask;
+import org.keycloak.models.RealmModel;
 import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.provider.ProviderConfigProperty;
 import org.keycloak.provider.ProviderConfigurationBuilder;
@@ -21,7 +24,14 @@ import java.util.ArrayList;
 import java.util.List;
 
 import sh.libre.scim.core.GroupAdapter;
+import sh.libre.scim.core.ScimChangeTracker;
 import sh.libre.scim.core.ScimDispatcher;
+import sh.libre.scim.core.ScimGroupFilter;
+import sh.libre.scim.core.ScimMetrics;
+import sh.libre.scim.core.ScimPropagationExecutor;
+import sh.libre.scim.core.ScimSyncLease;
+import sh.libre.scim.core.ScimTarget;
+import sh.libre.scim.jpa.ScimMappingCache;
 import sh.libre.scim.core.UserAdapter;
 
 import de.captaingoldfish.scim.sdk.common.constants.HttpHeader;
@@ -85,6 +95,13 @@ public class ScimStorageProviderFactory
                 .defaultValue("true")
                 .add()
                 .property()
+                .name("propagation-async")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Asynchronous propagation")
+                .helpText("When enabled, changes are queued and sent to the SCIM server by background workers once the Keycloak transaction commits, instead of blocking the admin or account request.")
+                .defaultValue(false)
+                .add()
+                .property()
                 .name("sync-import")
                 .type(ProviderConfigProperty.BOOLEAN_TYPE)
                 .label("Enable import during sync")
@@ -99,12 +116,96 @@ public class ScimStorageProviderFactory
                 .defaultValue("CREATE_LOCAL")
                 .add()
                 .property()
+                .name("sync-import-incremental")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Incremental import")
+                .helpText("Only list remote resources modified since the last import, using a meta.lastModified filter. Requires a SCIM server that supports filtering on meta.lastModified.")
+                .defaultValue(false)
+                .add()
+                .property()
+                .name("sync-import-full-interval")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Full import interval")
+                .helpText("Hours between two full imports when incremental import is enabled.")
+                .defaultValue("24")
+                .add()
+                .property()
                 .name("sync-refresh")
                 .type(ProviderConfigProperty.BOOLEAN_TYPE)
                 .label("Enable refresh during sync")
                 .helpText("Enable fetching current data from the SCIM server before performing sync operations to ensure consistency and avoid conflicts.")
                 .add()
                 .property()
+                .name("list-page-size")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("List page size")
+                .helpText("Number of resources requested per page when listing resources from the SCIM server.")
+                .defaultValue("100")
+                .add()
+                .property()
+                .name("sync-force-replace")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Always resend during sync")
+                .helpText("Updates are skipped when the resource didn't change since it was last sent. Enable this to resend every resource during refresh sync.")
+                .defaultValue(false)
+                .add()
+                .property()
+                .name("sync-concurrency")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Sync concurrency")
+                .helpText("Number of resources reconciled in parallel during refresh sync, each in its own transaction. Every worker uses a database connection. 1 keeps the sync sequential.")
+                .defaultValue("1")
+                .add()
+                .property()
+                .name("rate-limit")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Rate limit")
+                .helpText("Maximum number of requests per second sent to the SCIM server by each Keycloak node. 0 disables the limit. Requests are also paused whenever the server answers 429 or 503 with a Retry-After header.")
+                .defaultValue("0")
+                .add()
+                .property()
+                .name("max-concurrency")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Maximum concurrent requests")
+                .helpText("Upper bound of requests in flight to the SCIM server on each Keycloak node. The actual number is adjusted from the server's error rate and latency.")
+                .defaultValue("16")
+                .add()
+                .property()
+                .name("sync-distributed")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Distributed sync")
+                .helpText("Split the users refreshed by a full sync into shards that every Keycloak node of the cluster works on, each with the sync concurrency.")
+                .defaultValue(false)
+                .add()
+                .property()
+                .name("sync-shard-size")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Sync shard size")
+                .helpText("Number of users per shard of a distributed sync.")
+                .defaultValue("1000")
+                .add()
+                .property()
+                .name("sync-page-size")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Sync page size")
+                .helpText("Number of Keycloak users read at once when enumerating users for refresh sync.")
+                .defaultValue("500")
+                .add()
+                .property()
+                .name("sync-chunk-size")
+                .type(ProviderConfigProperty.STRING_TYPE)
+                .label("Sync chunk size")
+                .helpText("Number of resources imported or refreshed per database transaction during sync. Each chunk is committed and released from memory before the next one.")
+                .defaultValue("100")
+                .add()
+                .property()
+                .name("bulk")
+                .type(ProviderConfigProperty.BOOLEAN_TYPE)
+                .label("Use bulk requests during sync")
+                .helpText("When enabled and the SCIM server advertises bulk support, creates and updates sent during sync are grouped into /Bulk requests.")
+                .defaultValue(false)
+                .add()
+                .property()
                 .name("group-patchOp")
                 .type(ProviderConfigProperty.BOOLEAN_TYPE)
                 .label("Use PATCH for groups")
@@ -160,16 +261,63 @@ public class ScimStorageProviderFactory
         return ID;
     }
 
+    @Override
+    public void onUpdate(KeycloakSession session, RealmModel realm, ComponentModel oldModel, ComponentModel newModel) {
+        ScimTarget.invalidate(newModel.getId());
+        ScimGroupFilter.invalidate(newModel.getId());
+        // The configuration may have been fixed, give dead operations another chance
+        ScimPropagationExecutor.replayDeadLetters(session, newModel.getId());
+    }
+
+    @Override
+    public void preRemove(KeycloakSession session, RealmModel realm, ComponentModel model) {
+        ScimTarget.invalidate(model.getId());
+        ScimMappingCache.invalidateComponent(model.getId());
+        ScimGroupFilter.invalidate(model.getId());
+    }
+
+    @Override
+    public void close() {
+        ScimTarget.invalidateAll();
+    }
+
     @Override
     public List<ProviderConfigProperty> getConfigProperties() {
         return configMetadata;
     }
 
+    /**
+     * Runs the task unless a sync of the same component is already running,
+     * on this node or another one of the cluster. Returns whether it ran.
+     */
+    protected boolean runExclusive(KeycloakSessionFactory sessionFactory, String realmId, ComponentModel model,
+            Runnable task) {
+        var lease = ScimSyncLease.tryAcquire(sessionFactory, realmId, model.getId());
+        if (lease == null) {
+            return false;
+        }
+        try (lease) {
+            task.run();
+        }
+        return true;
+    }
+
     @Override
     public SynchronizationResult sync(KeycloakSessionFactory sessionFactory, String realmId,
             UserStorageProviderModel model) {
         LOGGER.info("sync");
+        var start = Time.currentTimeMillis();
         var result = new ScimSynchronizationResult();
+        if (!runExclusive(sessionFactory, realmId, model, () -> fullSync(sessionFactory, realmId, model, result))) {
+            LOGGER.infof("A sync of %s is already running, skipping", model.getName());
+            return SynchronizationResult.ignored();
+        }
+        ScimMetrics.sync(model, "full", Time.currentTimeMillis() - start, result);
+        return result;
+    }
+
+    protected void fullSync(KeycloakSessionFactory sessionFactory, String realmId, UserStorageProviderModel model,
+            ScimSynchronizationResult result) {
         KeycloakModelUtils.runJobInTransaction(sessionFactory, new KeycloakSessionTask() {
 
             @Override
@@ -186,15 +334,55 @@ public class ScimStorageProviderFactory
             }
 
         });
-
-        return result;
-
     }
 
     @Override
     public SynchronizationResult syncSince(Date lastSync, KeycloakSessionFactory sessionFactory, String realmId,
             UserStorageProviderModel model) {
-        return this.sync(sessionFactory, realmId, model);
+        if (lastSync == null) {
+            return this.sync(sessionFactory, realmId, model);
+        }
+        LOGGER.infof("sync since %s", lastSync);
+        var start = Time.currentTimeMillis();
+        var result = new ScimSynchronizationResult();
+        var incremental = new AtomicBoolean();
+        var executed = runExclusive(sessionFactory, realmId, model, () -> {
+            incremental.set(syncChanges(lastSync, sessionFactory, realmId, model, result));
+            if (!incremental.get()) {
+                LOGGER.infof("Changes since %s are not fully tracked (enable admin and user events, or asynchronous propagation), running a full sync", lastSync);
+                fullSync(sessionFactory, realmId, model, result);
+            }
+        });
+        if (!executed) {
+            LOGGER.infof("A sync of %s is already running, skipping", model.getName());
+            return SynchronizationResult.ignored();
+        }
+        ScimMetrics.sync(model, incremental.get() ? "incremental" : "full", Time.currentTimeMillis() - start, result);
+        return result;
+    }
+
+    /**
+     * Refreshes the resources changed since the last sync. Returns false, without
+     * doing anything, when the changes aren't fully tracked.
+     */
+    protected boolean syncChanges(Date lastSync, KeycloakSessionFactory sessionFactory, String realmId,
+            UserStorageProviderModel model, ScimSynchronizationResult result) {
+        return KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+            var realm = session.realms().getRealm(realmId);
+            session.getContext().setRealm(realm);
+            var changes = ScimChangeTracker.since(session, model, lastSync.getTime());
+            if (!changes.isComplete()) {
+                return false;
+            }
+            var dispatcher = new ScimDispatcher(session);
+            if ("true".equals(model.get("propagation-user"))) {
+                dispatcher.runOne(model, client -> client.syncChanged(UserAdapter.class, changes.getUserIds(), result));
+            }
+            if ("true".equals(model.get("propagation-group"))) {
+                dispatcher.runOne(model, client -> client.syncChanged(GroupAdapter.class, changes.getGroupIds(), result));
+            }
+            return true;
+        });
     }
 
 }
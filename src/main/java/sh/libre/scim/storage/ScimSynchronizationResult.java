@@ -17,56 +17,66 @@ public class ScimSynchronizationResult extends SynchronizationResult {
     private List<String> failedGroups = new ArrayList<>();
     private List<String> mappedGroups = new ArrayList<>();
 
-    public void addAddedUser(String userInfo) {
+    public synchronized void addAddedUser(String userInfo) {
         addedUsers.add(userInfo);
         super.increaseAdded();
     }
 
-    public void addUpdatedUser(String userInfo) {
+    public synchronized void addUpdatedUser(String userInfo) {
         updatedUsers.add(userInfo);
         super.increaseUpdated();
     }
 
-    public void addRemovedUser(String userInfo) {
+    public synchronized void addRemovedUser(String userInfo) {
         removedUsers.add(userInfo);
         super.increaseRemoved();
     }
 
-    public void addFailedUser(String userInfo) {
+    public synchronized void addFailedUser(String userInfo) {
         failedUsers.add(userInfo);
         super.increaseFailed();
     }
 
-    public void addAddedGroup(String groupInfo) {
+    public synchronized void addAddedGroup(String groupInfo) {
         addedGroups.add(groupInfo);
         super.increaseAdded();
     }
 
-    public void addUpdatedGroup(String groupInfo) {
+    public synchronized void addUpdatedGroup(String groupInfo) {
         updatedGroups.add(groupInfo);
         super.increaseUpdated();
     }
 
-    public void addRemovedGroup(String groupInfo) {
+    public synchronized void addRemovedGroup(String groupInfo) {
         removedGroups.add(groupInfo);
         super.increaseRemoved();
     }
 
-    public void addFailedGroup(String groupInfo) {
+    public synchronized void addFailedGroup(String groupInfo) {
         failedGroups.add(groupInfo);
         super.increaseFailed();
     }
 
-    public void addMappedUser(String userInfo) {
+    public synchronized void addMappedUser(String userInfo) {
         mappedUsers.add(userInfo);
         super.increaseUpdated(); // Treat as updated
     }
 
-    public void addMappedGroup(String groupInfo) {
+    public synchronized void addMappedGroup(String groupInfo) {
         mappedGroups.add(groupInfo);
         super.increaseUpdated(); // Treat as updated
     }
 
+    /**
+     * Adds counters of work done elsewhere, e.g. sync shards refreshed by other nodes.
+     */
+    public synchronized void addCounts(int added, int updated, int removed, int failed) {
+        setAdded(getAdded() + added);
+        setUpdated(getUpdated() + updated);
+        setRemoved(getRemoved() + removed);
+        setFailed(getFailed() + failed);
+    }
+
     // Getters for the lists
     public List<String> getAddedUsers() { return addedUsers; }
     public List<String> getUpdatedUsers() { return updatedUsers; }
@@ -80,7 +90,7 @@ public class ScimSynchronizationResult extends SynchronizationResult {
     public List<String> getMappedGroups() { return mappedGroups; }
 
     @Override
-    public String getStatus() {
+    public synchronized String getStatus() {
         StringBuilder status = new StringBuilder();
         if (getAdded() > 0) status.append(getAdded()).append(" added");
         if (getUpdated() > 0) {